@@ -0,0 +1,48 @@
+package shop.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the shop benchmarks once per thread count and writes the results of each run
+ * as JSON, named by start time and thread count, so that runs can be compared over time.
+ * The first argument is an optional regular expression selecting benchmarks.
+ * Thread counts, data sizes and the result directory are read from the system properties
+ * shop.bench.threads, shop.bench.purchases and shop.bench.results.
+ */
+public final class ShopBenchmarkRunner {
+
+  private ShopBenchmarkRunner() {
+  }
+
+  public static void main(String[] args) throws RunnerException, IOException {
+    String include = args.length > 0 ? args[0] : "shop\\.bench\\..*";
+    String[] threads = System.getProperty("shop.bench.threads", "1,4,16").split(",");
+    String[] purchases = System.getProperty("shop.bench.purchases", "10000,1000000").split(",");
+    Path results = Paths.get(System.getProperty("shop.bench.results", "jmh-results"));
+    Files.createDirectories(results);
+    String started = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+
+    for (String t : threads) {
+      int threadCount = Integer.parseInt(t.trim());
+      Options options = new OptionsBuilder()
+              .include(include)
+              .threads(threadCount)
+              .param("purchases", purchases)
+              .resultFormat(ResultFormatType.JSON)
+              .result(results.resolve(String.format("shop-%s-t%d.json", started, threadCount))
+                      .toString())
+              .build();
+      new Runner(options).run();
+    }
+  }
+}
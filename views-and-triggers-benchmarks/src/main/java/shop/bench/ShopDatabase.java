@@ -0,0 +1,79 @@
+package shop.bench;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import shop.AdminShopOperations;
+import shop.AdminShopOperationsImpl;
+import shop.ShopConnectionPool;
+import shop.SyntheticShopData;
+
+/**
+ * A freshly created shop database filled with synthetic data, shared by all benchmark threads.
+ * The server and the admin account are configured with the system properties
+ * shop.bench.url, shop.bench.user and shop.bench.password.
+ */
+@State(Scope.Benchmark)
+public class ShopDatabase {
+  static final String BASE_URL = System.getProperty("shop.bench.url", "jdbc:postgresql://localhost/");
+  static final String SHOP_URL = BASE_URL + "shop";
+  static final String ADMIN = System.getProperty("shop.bench.user", "admin");
+  static final String ADMIN_PASSWORD = System.getProperty("shop.bench.password", "admin");
+
+  private static final long SEED = 20211111L;
+  private static final int ARTICLES = 1000;
+  private static final int PURCHASES_PER_CUSTOMER = 100;
+  private static final int MIN_CUSTOMERS = 100;
+
+  /** The number of purchases the database is populated with. */
+  @Param({"10000", "1000000"})
+  public int purchases;
+
+  /** The pool all benchmark threads borrow their connections from. */
+  ShopConnectionPool pool;
+
+  int customers() {
+    return Math.max(MIN_CUSTOMERS, purchases / PURCHASES_PER_CUSTOMER);
+  }
+
+  @Setup(Level.Trial)
+  public void create() throws SQLException, IOException {
+    try (AdminShopOperations op = new AdminShopOperationsImpl(BASE_URL, ADMIN, ADMIN_PASSWORD)) {
+      op.createShopDatabase();
+    }
+    SyntheticShopData data = new SyntheticShopData(SEED, customers(), ARTICLES, purchases,
+            1.0, 1.0, LocalDate.now().minusDays(365), 366);
+    try (AdminShopOperations op = new AdminShopOperationsImpl(SHOP_URL, ADMIN, ADMIN_PASSWORD)) {
+      op.createTables();
+      op.populateTables(data.loader(ShopDatabase::adminConnection).setDeferConstraints(true));
+      op.createUsers(1000);
+      op.createViewHistory();
+      op.createFunctionNewPurchase();
+      op.createRuleDeleteHistory();
+    }
+    try (Connection conn = adminConnection(); Statement stmt = conn.createStatement()) {
+      // benchmark customers must never run out of money
+      stmt.executeUpdate("update customer set balance = 1000000000");
+      stmt.execute("vacuum analyze");
+    }
+    pool = new ShopConnectionPool(SHOP_URL, 256, 0, 60000);
+  }
+
+  @TearDown(Level.Trial)
+  public void close() {
+    pool.close();
+  }
+
+  static Connection adminConnection() throws SQLException {
+    return DriverManager.getConnection(SHOP_URL, ADMIN, ADMIN_PASSWORD);
+  }
+}
@@ -0,0 +1,106 @@
+package shop.bench;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+import shop.AdminShopOperations;
+import shop.AdminShopOperationsImpl;
+import shop.SyntheticShopData;
+import shop.UserShopOperations;
+import shop.UserShopOperationsImpl;
+
+/**
+ * Benchmarks the shop operations against a local PostgreSQL server.
+ * Each benchmark thread acts as a different customer; customers with a low index
+ * are the heavy buyers of the synthetic data.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ShopOperationsBenchmark {
+  private static final String ARTICLE = SyntheticShopData.articleName(0);
+
+  /** The operations of the customer a benchmark thread acts as. */
+  @State(Scope.Thread)
+  public static class Customer {
+    String name;
+    UserShopOperations user;
+    AdminShopOperations admin;
+
+    @Setup(Level.Trial)
+    public void open(ShopDatabase db, ThreadParams thread) throws SQLException {
+      name = SyntheticShopData.customerName(thread.getThreadIndex() % db.customers());
+      user = new UserShopOperationsImpl(db.pool, name, name);
+      admin = new AdminShopOperationsImpl(db.pool, ShopDatabase.ADMIN, ShopDatabase.ADMIN_PASSWORD);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws SQLException {
+      user.close();
+      admin.close();
+    }
+  }
+
+  /** A purchase made before each invocation, so that there is always one to cancel. */
+  @State(Scope.Thread)
+  public static class PendingPurchase {
+    @Setup(Level.Invocation)
+    public void purchase(Customer customer) throws SQLException, IOException {
+      customer.user.newPurchase(ARTICLE, 1);
+    }
+  }
+
+  @Benchmark
+  public boolean newPurchase(Customer customer) throws SQLException, IOException {
+    return customer.user.newPurchase(ARTICLE, 1);
+  }
+
+  @Benchmark
+  public void cancelPurchase(Customer customer, PendingPurchase pending)
+      throws SQLException, IOException {
+    customer.user.cancelPurchase(ARTICLE);
+  }
+
+  @Benchmark
+  public void selectHistory(Customer customer, Blackhole bh) throws SQLException, IOException {
+    consume(customer.user.selectHistory(), bh);
+  }
+
+  @Benchmark
+  public void selectHistoryToday(Customer customer, Blackhole bh)
+      throws SQLException, IOException {
+    consume(customer.user.selectHistoryToday(), bh);
+  }
+
+  @Benchmark
+  public int getBalance(Customer customer) throws SQLException, IOException {
+    return customer.admin.getBalance(customer.name);
+  }
+
+  private static void consume(ResultSet res, Blackhole bh) throws SQLException {
+    try (ResultSet rows = res) {
+      while (rows.next()) {
+        bh.consume(rows.getInt(1));
+        bh.consume(rows.getString(3));
+        bh.consume(rows.getInt(5));
+      }
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package shop.bench;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import shop.ShopConnectionPool;
+import shop.SyntheticShopData;
+import shop.Workload;
+import shop.WorkloadReport;
+
+/**
+ * Creates a synthetic shop and lets concurrent customers shop in it, then prints throughput,
+ * latency percentiles and the value check per operation. The run is configured with the
+ * system properties shop.workload.customers, shop.workload.articles, shop.workload.seconds,
+ * shop.workload.mix (purchase:cancel:history) and shop.workload.think (min:max milliseconds),
+ * and the database with those of {@link ShopDatabase}.
+ */
+public final class WorkloadRunner {
+
+  private WorkloadRunner() {
+  }
+
+  public static void main(String[] args) throws SQLException, IOException {
+    int customers = Integer.getInteger("shop.workload.customers", 32);
+    int articles = Integer.getInteger("shop.workload.articles", 100);
+    int seconds = Integer.getInteger("shop.workload.seconds", 30);
+    String[] mix = System.getProperty("shop.workload.mix", "6:2:2").split(":");
+    String[] think = System.getProperty("shop.workload.think", "0:10").split(":");
+
+    ShopDatabase db = new ShopDatabase();
+    db.purchases = Integer.getInteger("shop.bench.purchases", 100000);
+    db.create();
+    try (ShopConnectionPool pool = new ShopConnectionPool(ShopDatabase.SHOP_URL)) {
+      List<String> customerNames = new ArrayList<>();
+      for (int i = 0; i < Math.min(customers, db.customers()); i++) {
+        customerNames.add(SyntheticShopData.customerName(i));
+      }
+      List<String> articleNames = new ArrayList<>();
+      for (int i = 0; i < articles; i++) {
+        articleNames.add(SyntheticShopData.articleName(i));
+      }
+      WorkloadReport report = new Workload(pool, ShopDatabase.ADMIN,
+              ShopDatabase.ADMIN_PASSWORD, customerNames, articleNames)
+              .setMix(Integer.parseInt(mix[0]), Integer.parseInt(mix[1]),
+                      Integer.parseInt(mix[2]))
+              .setThinkTime(Long.parseLong(think[0]), Long.parseLong(think[1]))
+              .run(seconds * 1000L);
+      System.out.print(report);
+    } finally {
+      db.close();
+    }
+  }
+}
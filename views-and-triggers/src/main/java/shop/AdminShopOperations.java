@@ -1,12 +1,19 @@
 package shop;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * This class is used as a parent class for operations which the admin
  * of the webshop executes on the database.
+ * Statements are cached with the connection, so a ResultSet returned by an operation
+ * is closed when the same operation is called again.
  */
 public abstract class AdminShopOperations extends ShopOperations {
 
@@ -14,6 +21,15 @@ public abstract class AdminShopOperations extends ShopOperations {
     super(url, user, password);
   }
 
+  public AdminShopOperations(ShopConnectionPool pool, String user, String password)
+      throws SQLException {
+    super(pool, user, password);
+  }
+
+  public AdminShopOperations(Connection conn) throws SQLException {
+    super(conn);
+  }
+
   /**
    * Create a database called 'shop', after deleting any existing database with this name.
    *
@@ -23,13 +39,55 @@ public abstract class AdminShopOperations extends ShopOperations {
   public abstract void createShopDatabase() throws SQLException, IOException;
 
   /**
-   * Create three tables: customer, article and order, in the currently connected database.
+   * Create a database with the given name, after deleting any existing database with this name,
+   * e.g. one of the shards of a {@link ShardedShop}.
+   *
+   * @param name the name of the database
+   * @throws SQLException if a database access error occurs
+   */
+  public abstract void createShopDatabase(String name) throws SQLException;
+
+  /**
+   * Create three tables: customer, article and order, in the currently connected database,
+   * together with the indexes on purchase.
    *
    * @throws SQLException if a database access error occurs
    * @throws IOException if the required query files could not be read
    */
   public abstract void createTables() throws SQLException, IOException;
 
+  /**
+   * Create three tables: customer, article and order, in the currently connected database,
+   * together with the indexes on purchase. Optionally, purchase is partitioned by month
+   * of the date, so that queries and cancellations of today's purchases only touch
+   * the partition of the current month. Purchases of months without a partition go to
+   * a default partition until {@link #maintainPurchasePartitions} creates one.
+   *
+   * @param partitioned true, to partition the purchase table by month
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public abstract void createTables(boolean partitioned) throws SQLException, IOException;
+
+  /**
+   * Maintain the monthly partitions of a partitioned purchase table, which should be done
+   * regularly, e.g. once a day: create the partitions of the current and the next months,
+   * move purchases from the default partition to new partitions of their months,
+   * and detach partitions of old months into schema purchase_archive.
+   * Archived purchases no longer appear in any history.
+   * Fails if the purchase table is not partitioned.
+   *
+   * @param monthsAhead the number of months after the current one to create partitions for
+   * @param retainMonths the number of months before the current one to keep partitions of,
+   *     or a negative number to archive none
+   * @return the affected partitions in order, each with the action "created" or "archived"
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public abstract Map<String, String> maintainPurchasePartitions(int monthsAhead,
+                                                                 int retainMonths)
+      throws SQLException, IOException;
+
   /**
    * Populate the customer, article and purchase tables with data.
    *
@@ -38,6 +96,18 @@ public abstract class AdminShopOperations extends ShopOperations {
    */
   public abstract void populateTables() throws SQLException, IOException;
 
+  /**
+   * Populate the customer, article and purchase tables with data in bulk mode,
+   * loading customers and articles in parallel.
+   *
+   * @param loader the loader, which defines the data sources
+   * @return the number of loaded rows and the time it took
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required data files could not be read
+   */
+  public abstract BulkLoadReport populateTables(BulkLoader loader)
+      throws SQLException, IOException;
+
   /**
    * Create one user account per customer, with the user name as initial password.
    * Drop existing users with the same name before.
@@ -48,6 +118,19 @@ public abstract class AdminShopOperations extends ShopOperations {
    */
   public abstract void createUsers() throws SQLException, IOException;
 
+  /**
+   * Create one user account per customer in bulk, with the user name as initial password.
+   * Users that already exist as members of role customer are left unchanged,
+   * other existing users with the same name are dropped and created again.
+   * The users are provisioned by the server in chunks, one transaction per chunk.
+   *
+   * @param chunkSize the maximum number of customers per chunk
+   * @return the numbers of created, recreated and skipped users and the time it took
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public abstract ProvisioningReport createUsers(int chunkSize) throws SQLException, IOException;
+
   /**
    * Create a view of the purchase history.
    *
@@ -57,7 +140,20 @@ public abstract class AdminShopOperations extends ShopOperations {
   public abstract void createViewHistory() throws SQLException, IOException;
 
   /**
-   * Create a function for users to make purchases.
+   * Bring the schema of a shop database created by an older version up to date:
+   * define the history view as a join and create the indexes on purchase
+   * that keep history queries proportional to the history of one customer.
+   * This step can be repeated safely.
+   *
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public abstract void migrateSchema() throws SQLException, IOException;
+
+  /**
+   * Create functions for users to make purchases, one article or a whole basket at a time,
+   * and a function for the admin to make purchases of many customers at once,
+   * as used by {@link PurchasePipeline}.
    *
    * @throws SQLException if a database access error occurs
    * @throws IOException if the required query files could not be read
@@ -65,14 +161,23 @@ public abstract class AdminShopOperations extends ShopOperations {
   public abstract void createFunctionNewPurchase() throws SQLException, IOException;
 
   /**
-   * Create a rule to let users cancel purchases
-   * by deleting them from their personal "history" view.
+   * Create functions to let users cancel today's purchases of one or several articles,
+   * and let users cancel purchases by deleting them from their personal "history" view.
    *
    * @throws SQLException if a database access error occurs
    * @throws IOException if the required query files could not be read
    */
   public abstract void createRuleDeleteHistory() throws SQLException, IOException;
 
+  /**
+   * Create a trigger that notifies channel "article_changed" of every change of table article,
+   * which keeps {@link ArticleCatalog} instances up to date.
+   *
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public abstract void createTriggerNotifyArticle() throws SQLException, IOException;
+
   /**
    * Returns the account balance of a user.
    *
@@ -83,8 +188,166 @@ public abstract class AdminShopOperations extends ShopOperations {
    */
   public abstract int getBalance(String ofUser) throws SQLException, IOException;
 
+  /**
+   * Returns the account balances of many users in one round trip.
+   * Balances served by the balance cache, if there is one, need no round trip at all.
+   *
+   * @param ofUsers the users
+   * @return the balances by user in the iteration order of the users,
+   *     without users that do not exist
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public abstract Map<String, Integer> getBalances(Collection<String> ofUsers)
+      throws SQLException, IOException;
+
+  /**
+   * Lets {@link #getBalance} and {@link #getBalances} serve balances from a cache.
+   * The cache is only kept up to date if the trigger created by
+   * {@link #createTriggerNotifyBalance} exists.
+   *
+   * @param cache the cache, or null to read every balance from the server
+   */
+  public abstract void setBalanceCache(BalanceCache cache);
+
+  /**
+   * Create a trigger that records every change of a customer's balance in table
+   * balance_change, which {@link BalanceCache} instances poll to stay up to date.
+   * The table can only be read by the admin, and no notification is sent, so that
+   * purchases neither reveal the spending of customers nor commit one at a time.
+   *
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public abstract void createTriggerNotifyBalance() throws SQLException, IOException;
+
+  /**
+   * Create a trigger that writes every purchase and cancellation into table purchase_event,
+   * which {@link PurchaseFeed} instances deliver to their listeners. As every user of the
+   * database could listen to them, the notifications on channel "purchase_changed" only
+   * announce new events, one per transaction; the events can only be read by the admin.
+   *
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public abstract void createTriggerNotifyPurchase() throws SQLException, IOException;
+
+  /**
+   * Delete old events from table purchase_event, which grows with every purchase and
+   * cancellation. Feeds that lag behind by more than the retention lose their events.
+   *
+   * @param retainMinutes how long events are kept
+   * @return the number of deleted events
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public abstract int deletePurchaseEvents(int retainMinutes) throws SQLException, IOException;
+
+  /**
+   * Create table daily_sales, which sums up the purchases, quantity and revenue
+   * of every article per day, together with triggers that append the changes of every
+   * statement on purchase to table daily_sales_delta. Purchases thus never wait for each
+   * other on a row of the summary; the changes are added to it by {@link #foldDailySales}.
+   * Existing purchases are summed up once, while purchases are blocked. Sales reports then
+   * take time proportional to the number of days and articles, not to the number of purchases.
+   *
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public abstract void createTriggerDailySales() throws SQLException, IOException;
+
+  /**
+   * Adds the changes appended to table daily_sales_delta to table daily_sales.
+   * Reports do this before they read, but it should also run periodically,
+   * so that the changes do not pile up between reports.
+   *
+   * @return the number of changes that have been added
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public abstract long foldDailySales() throws SQLException, IOException;
+
+  /**
+   * Selects the sales of each day in a range, from table daily_sales,
+   * after folding the pending changes into it.
+   * Revenue is counted at the price of the article at the time of a purchase
+   * and reduced by the refund of a cancellation.
+   * The result set is closed by the next call of this method on this instance.
+   *
+   * @param from the first day
+   * @param to the last day
+   * @return a ResultSet of date, purchases, quantity and revenue, ordered by date
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public abstract ResultSet selectDailySales(LocalDate from, LocalDate to)
+      throws SQLException, IOException;
+
+  /**
+   * Selects the sales of each article in a range of days, from table daily_sales,
+   * after folding the pending changes into it.
+   * The result set is closed by the next call of this method on this instance.
+   *
+   * @param from the first day
+   * @param to the last day
+   * @return a ResultSet of article, purchases, quantity and revenue,
+   *     ordered by descending revenue
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public abstract ResultSet selectArticleSales(LocalDate from, LocalDate to)
+      throws SQLException, IOException;
+
+  /**
+   * Export a table into a stream with COPY, without decoding rows on the client.
+   * The data is written to the stream as the server sends it, so memory use does not
+   * depend on the size of the table. The stream is neither flushed nor closed.
+   * Table daily_sales is folded first, see {@link #foldDailySales}.
+   *
+   * @param table the table
+   * @param out the stream to write to
+   * @param format the COPY format of the data
+   * @param gzip true, to compress the data with gzip
+   * @return the number of rows and bytes and the time it took
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the stream could not be written
+   */
+  public abstract ExportReport exportTable(ShopTable table, OutputStream out,
+                                           BulkLoadSource.Format format, boolean gzip)
+      throws SQLException, IOException;
+
+  /**
+   * Export the purchase history of a customer into a stream with COPY, with the columns
+   * of the "history" view: id, date, article, quantity and price, latest purchase first.
+   *
+   * @param customer the customer
+   * @param out the stream to write to
+   * @param format the COPY format of the data
+   * @param gzip true, to compress the data with gzip
+   * @return the number of rows and bytes and the time it took
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   *     or the stream could not be written
+   */
+  public abstract ExportReport exportHistory(String customer, OutputStream out,
+                                             BulkLoadSource.Format format, boolean gzip)
+      throws SQLException, IOException;
+
+  /**
+   * Returns the total value held by the shop's customers: the sum of all balances plus
+   * the value of all purchases at current prices. Purchases and cancellations move value
+   * between balances and purchases, so the total stays the same as long as no price,
+   * balance or purchase is changed by other means.
+   *
+   * @return the total value
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public abstract long getTotalValue() throws SQLException, IOException;
+
   /**
    * Selects all names of customers of the shop.
+   * The result set is closed by the next call of this method on this instance.
    *
    * @return a ResultSet of customer names
    * @throws SQLException if a database access error occurs
@@ -94,6 +357,7 @@ public abstract class AdminShopOperations extends ShopOperations {
 
   /**
    * Selects all names of articles of the shop.
+   * The result set is closed by the next call of this method on this instance.
    *
    * @return a ResultSet of article names
    * @throws SQLException if a database access error occurs
@@ -103,6 +367,7 @@ public abstract class AdminShopOperations extends ShopOperations {
 
   /**
    * Selects all ids of purchases that have been made in the shop.
+   * The result set is closed by the next call of this method on this instance.
    *
    * @return a ResultSet of purchase ids
    * @throws SQLException if a database access error occurs
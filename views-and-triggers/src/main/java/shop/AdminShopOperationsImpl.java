@@ -1,9 +1,23 @@
 package shop;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import org.postgresql.PGConnection;
 import org.postgresql.copy.CopyManager;
 import org.postgresql.core.BaseConnection;
 
@@ -13,109 +27,424 @@ import org.postgresql.core.BaseConnection;
 public class AdminShopOperationsImpl extends AdminShopOperations {
   private static final String CREATE_SHOP_DATABASE_FILE = "createShopDatabase";
   private static final String CREATE_TABLES_FILE = "createTables";
+  private static final String CREATE_PARTITIONED_TABLES_FILE = "createPartitionedTables";
+  private static final String CREATE_FUNCTION_MAINTAIN_PARTITIONS_FILE =
+          "createFunctionMaintainPartitions";
+  private static final String MAINTAIN_PURCHASE_PARTITIONS_FILE = "maintainPurchasePartitions";
+  private static final String CREATE_INDEXES_FILE = "createIndexes";
   private static final String SET_DATESTYLE_FILE = "setDatestyle";
   private static final String CUSTOMER_DATA = "customer";
   private static final String ARTICLE_DATA = "article";
   private static final String PURCHASE_DATA = "purchase";
+  private static final String SYNC_PURCHASE_ID_FILE = "syncPurchaseId";
   private static final String CREATE_ROLE_CUSTOMER_FILE = "createRoleCustomer";
   private static final String GET_CUSTOMERS_FILE = "getCustomers";
+  private static final String CREATE_ROLE_CUSTOMER_IF_MISSING_FILE = "createRoleCustomerIfMissing";
+  private static final String CREATE_FUNCTION_PROVISION_CUSTOMERS_FILE =
+          "createFunctionProvisionCustomers";
+  private static final String PROVISION_CUSTOMERS_FILE = "provisionCustomers";
   private static final String CREATE_VIEW_HISTORY_FILE = "createViewHistory";
   private static final String GRANT_READ_ON_HISTORY_FILE = "grantReadOnHistory";
   private static final String CREATE_FUNCTION_NEW_PURCHASE_FILE = "createFunctionNewPurchase";
+  private static final String CREATE_FUNCTION_NEW_PURCHASES_FILE = "createFunctionNewPurchases";
+  private static final String CREATE_FUNCTION_NEW_PURCHASES_FOR_FILE =
+          "createFunctionNewPurchasesFor";
+  private static final String CREATE_FUNCTION_CANCEL_PURCHASE_FILE = "createFunctionCancelPurchase";
   private static final String CREATE_RULE_DELETE_HISTORY_FILE = "createRuleDeleteHistory";
+  private static final String CREATE_TRIGGER_NOTIFY_ARTICLE_FILE = "createTriggerNotifyArticle";
+  private static final String CREATE_TRIGGER_NOTIFY_BALANCE_FILE = "createTriggerNotifyBalance";
+  private static final String CREATE_TRIGGER_NOTIFY_PURCHASE_FILE = "createTriggerNotifyPurchase";
+  private static final String DELETE_PURCHASE_EVENTS_FILE = "deletePurchaseEvents";
+  private static final String CREATE_TRIGGER_DAILY_SALES_FILE = "createTriggerDailySales";
+  private static final String FOLD_DAILY_SALES_FILE = "foldDailySales";
+  private static final String SELECT_DAILY_SALES_FILE = "selectDailySales";
+  private static final String SELECT_ARTICLE_SALES_FILE = "selectArticleSales";
+  private static final String EXPORT_HISTORY_FILE = "exportHistory";
   private static final String GET_BALANCE_FILE = "getBalance";
+  private static final String GET_BALANCES_FILE = "getBalances";
+  private static final String SELECT_TOTAL_VALUE_FILE = "selectTotalValue";
   private static final String SELECT_CUSTOMER_NAME_FILE = "selectCustomerName";
   private static final String SELECT_ARTICLE_NAME_FILE = "selectArticleName";
   private static final String SELECT_PURCHASE_ID_FILE = "selectPurchaseId";
 
+  /** Serves balances without a round trip, if set. */
+  private BalanceCache balances;
+
   public AdminShopOperationsImpl(String url, String user, String password) throws SQLException {
     super(url, user, password);
   }
 
+  public AdminShopOperationsImpl(ShopConnectionPool pool, String user, String password)
+      throws SQLException {
+    super(pool, user, password);
+  }
+
+  public AdminShopOperationsImpl(Connection conn) throws SQLException {
+    super(conn);
+  }
+
   @Override
   public void createShopDatabase() throws SQLException, IOException {
-    prepareSelfClosingStatement(CREATE_SHOP_DATABASE_FILE).executeUpdate();
+    executeOnce(CREATE_SHOP_DATABASE_FILE);
+  }
+
+  @Override
+  public void createShopDatabase(String name) throws SQLException {
+    String database = conn.unwrap(PGConnection.class).escapeIdentifier(name);
+    try (Statement stmt = conn.createStatement()) {
+      stmt.execute("DROP DATABASE IF EXISTS " + database);
+      stmt.execute("CREATE DATABASE " + database);
+    }
   }
 
   @Override
   public void createTables() throws SQLException, IOException {
-    prepareSelfClosingStatement(CREATE_TABLES_FILE).executeUpdate();
+    createTables(false);
+  }
+
+  @Override
+  public void createTables(boolean partitioned) throws SQLException, IOException {
+    if (partitioned) {
+      executeOnce(CREATE_PARTITIONED_TABLES_FILE);
+    } else {
+      executeOnce(CREATE_TABLES_FILE);
+    }
+    executeOnce(CREATE_INDEXES_FILE);
+    executeOnce(CREATE_FUNCTION_MAINTAIN_PARTITIONS_FILE);
+  }
+
+  @Override
+  public Map<String, String> maintainPurchasePartitions(int monthsAhead, int retainMonths)
+      throws SQLException, IOException {
+    Map<String, String> partitions = new LinkedHashMap<>();
+    try (ResultSet res = executeQuery(MAINTAIN_PURCHASE_PARTITIONS_FILE, monthsAhead,
+            retainMonths)) {
+      while (res.next()) {
+        partitions.put(res.getString(1), res.getString(2));
+      }
+    }
+    return partitions;
   }
 
   @Override
   public void populateTables() throws SQLException, IOException {
-    CopyManager manager = new CopyManager((BaseConnection) conn);
-    prepareStatement(SET_DATESTYLE_FILE).executeUpdate();
+    CopyManager manager = conn.unwrap(BaseConnection.class).getCopyAPI();
+    executeOnce(SET_DATESTYLE_FILE);
     manager.copyIn("COPY customer FROM STDIN", ShopResource.getData(CUSTOMER_DATA));
     manager.copyIn("COPY article FROM STDIN", ShopResource.getData(ARTICLE_DATA));
     manager.copyIn("COPY purchase FROM STDIN", ShopResource.getData(PURCHASE_DATA));
+    executeOnce(SYNC_PURCHASE_ID_FILE);
+  }
+
+  @Override
+  public BulkLoadReport populateTables(BulkLoader loader) throws SQLException, IOException {
+    return loader.load(conn);
   }
 
   @Override
   public void createUsers() throws SQLException, IOException {
-    PreparedStatement createRoleCustomer = prepareSelfClosingStatement(CREATE_ROLE_CUSTOMER_FILE);
-    createRoleCustomer.executeUpdate();
+    executeOnce(CREATE_ROLE_CUSTOMER_FILE);
 
-    PreparedStatement getCustomerStmt = prepareSelfClosingStatement(GET_CUSTOMERS_FILE);
-    try (ResultSet res = getCustomerStmt.executeQuery()) {
+    try (PreparedStatement getCustomerStmt = prepareStatement(GET_CUSTOMERS_FILE);
+         ResultSet res = getCustomerStmt.executeQuery();
+         Statement ddl = conn.createStatement()) {
       String customername;
 
       while (res.next()) {
         customername = res.getString(1);
-        conn.prepareStatement(String.format("DROP USER IF EXISTS %s;", customername))
-                .executeUpdate();
-        conn.prepareStatement(String
-                .format("CREATE USER %s WITH PASSWORD '%s' IN ROLE customer;",
-                        customername, customername))
-                .executeUpdate();
+        ddl.executeUpdate(String.format("DROP USER IF EXISTS %s;", customername));
+        ddl.executeUpdate(String.format("CREATE USER %s WITH PASSWORD '%s' IN ROLE customer;",
+                customername, customername));
       }
     }
   }
 
+  @Override
+  public ProvisioningReport createUsers(int chunkSize) throws SQLException, IOException {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException();
+    }
+    long start = System.nanoTime();
+    executeOnce(CREATE_ROLE_CUSTOMER_IF_MISSING_FILE);
+    executeOnce(CREATE_FUNCTION_PROVISION_CUSTOMERS_FILE);
+
+    int created = 0;
+    int recreated = 0;
+    int skipped = 0;
+    int chunks = 0;
+    String last = null;
+    try (PreparedStatement stmt = prepareStatement(PROVISION_CUSTOMERS_FILE)) {
+      int processed;
+      do {
+        stmt.setString(1, last);
+        stmt.setInt(2, chunkSize);
+        try (ResultSet res = stmt.executeQuery()) {
+          res.next();
+          last = res.getString(1);
+          processed = res.getInt(2);
+          created += res.getInt(3);
+          recreated += res.getInt(4);
+          skipped += res.getInt(5);
+        }
+        chunks++;
+      } while (processed == chunkSize);
+    }
+    return new ProvisioningReport(created, recreated, skipped, chunks,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
   @Override
   public void createViewHistory() throws SQLException, IOException {
-    PreparedStatement stmt = prepareSelfClosingStatement(CREATE_VIEW_HISTORY_FILE);
-    stmt.executeUpdate();
-    stmt = prepareSelfClosingStatement(GRANT_READ_ON_HISTORY_FILE);
-    stmt.executeUpdate();
+    executeOnce(CREATE_VIEW_HISTORY_FILE);
+    executeOnce(GRANT_READ_ON_HISTORY_FILE);
+  }
 
+  @Override
+  public void migrateSchema() throws SQLException, IOException {
+    executeOnce(CREATE_VIEW_HISTORY_FILE);
+    executeOnce(CREATE_INDEXES_FILE);
   }
 
   @Override
   public void createFunctionNewPurchase() throws SQLException, IOException {
-    prepareSelfClosingStatement(CREATE_FUNCTION_NEW_PURCHASE_FILE).executeUpdate();
+    executeOnce(CREATE_FUNCTION_NEW_PURCHASE_FILE);
+    executeOnce(CREATE_FUNCTION_NEW_PURCHASES_FILE);
+    executeOnce(CREATE_FUNCTION_NEW_PURCHASES_FOR_FILE);
   }
 
   @Override
   public void createRuleDeleteHistory() throws SQLException, IOException {
-    prepareSelfClosingStatement(CREATE_RULE_DELETE_HISTORY_FILE).executeUpdate();
+    executeOnce(CREATE_FUNCTION_CANCEL_PURCHASE_FILE);
+    executeOnce(CREATE_RULE_DELETE_HISTORY_FILE);
+  }
+
+  @Override
+  public void createTriggerNotifyArticle() throws SQLException, IOException {
+    executeOnce(CREATE_TRIGGER_NOTIFY_ARTICLE_FILE);
+  }
+
+  @Override
+  public void createTriggerNotifyBalance() throws SQLException, IOException {
+    executeOnce(CREATE_TRIGGER_NOTIFY_BALANCE_FILE);
+  }
+
+  @Override
+  public void createTriggerNotifyPurchase() throws SQLException, IOException {
+    executeOnce(CREATE_TRIGGER_NOTIFY_PURCHASE_FILE);
+  }
+
+  @Override
+  public int deletePurchaseEvents(int retainMinutes) throws SQLException, IOException {
+    if (retainMinutes < 0) {
+      throw new IllegalArgumentException();
+    }
+    try (PreparedStatement stmt = prepareStatement(DELETE_PURCHASE_EVENTS_FILE)) {
+      stmt.setInt(1, retainMinutes);
+      return stmt.executeUpdate();
+    }
+  }
+
+  @Override
+  public void createTriggerDailySales() throws SQLException, IOException {
+    executeOnce(CREATE_TRIGGER_DAILY_SALES_FILE);
+  }
+
+  @Override
+  public long foldDailySales() throws SQLException, IOException {
+    try (ResultSet res = executeQuery(FOLD_DAILY_SALES_FILE)) {
+      res.next();
+      return res.getLong(1);
+    }
+  }
+
+  @Override
+  public ResultSet selectDailySales(LocalDate from, LocalDate to)
+      throws SQLException, IOException {
+    foldDailySales();
+    return executeQuery(SELECT_DAILY_SALES_FILE, from, to);
+  }
+
+  @Override
+  public ResultSet selectArticleSales(LocalDate from, LocalDate to)
+      throws SQLException, IOException {
+    foldDailySales();
+    return executeQuery(SELECT_ARTICLE_SALES_FILE, from, to);
+  }
+
+  @Override
+  public void setBalanceCache(BalanceCache cache) {
+    this.balances = cache;
   }
 
   @Override
   public int getBalance(String ofUser) throws SQLException, IOException {
-    PreparedStatement stmt = prepareSelfClosingStatement(GET_BALANCE_FILE);
-    stmt.setString(1, ofUser);
-    try (ResultSet res = stmt.executeQuery()) {
+    BalanceCache cache = balances;
+    if (cache == null) {
+      return selectBalance(ofUser);
+    }
+    long start = System.nanoTime();
+    try {
+      Integer cached = cache.get(ofUser);
+      if (cached != null) {
+        return cached;
+      }
+      long version = cache.version(ofUser);
+      int balance = selectBalance(ofUser);
+      cache.put(ofUser, balance, version);
+      return balance;
+    } finally {
+      cache.record(System.nanoTime() - start);
+    }
+  }
+
+  @Override
+  public Map<String, Integer> getBalances(Collection<String> ofUsers)
+      throws SQLException, IOException {
+    BalanceCache cache = balances;
+    long start = System.nanoTime();
+    Map<String, Integer> found = new HashMap<>();
+    List<String> missing = new ArrayList<>();
+    for (String user : ofUsers) {
+      Integer cached = cache == null ? null : cache.get(user);
+      if (cached != null) {
+        found.put(user, cached);
+      } else {
+        missing.add(user);
+      }
+    }
+    if (!missing.isEmpty()) {
+      long[] versions = new long[missing.size()];
+      for (int i = 0; cache != null && i < versions.length; i++) {
+        versions[i] = cache.version(missing.get(i));
+      }
+      Map<String, Integer> selected = selectBalances(missing);
+      found.putAll(selected);
+      for (int i = 0; cache != null && i < versions.length; i++) {
+        Integer balance = selected.get(missing.get(i));
+        if (balance != null) {
+          cache.put(missing.get(i), balance, versions[i]);
+        }
+      }
+    }
+    Map<String, Integer> result = new LinkedHashMap<>();
+    for (String user : ofUsers) {
+      Integer balance = found.get(user);
+      if (balance != null) {
+        result.put(user, balance);
+      }
+    }
+    if (cache != null) {
+      cache.record(System.nanoTime() - start);
+    }
+    return result;
+  }
+
+  private int selectBalance(String ofUser) throws SQLException, IOException {
+    try (ResultSet res = executeQuery(GET_BALANCE_FILE, ofUser)) {
       res.next();
       return res.getInt(1);
     }
   }
 
+  private Map<String, Integer> selectBalances(Collection<String> ofUsers)
+      throws SQLException, IOException {
+    Map<String, Integer> selected = new HashMap<>();
+    try (ResultSet res = executeQuery(GET_BALANCES_FILE,
+            conn.createArrayOf("text", ofUsers.toArray()))) {
+      while (res.next()) {
+        selected.put(res.getString(1), res.getInt(2));
+      }
+    }
+    return selected;
+  }
+
+  @Override
+  public ExportReport exportTable(ShopTable table, OutputStream out,
+                                  BulkLoadSource.Format format, boolean gzip)
+      throws SQLException, IOException {
+    if (table == ShopTable.DAILY_SALES) {
+      foldDailySales();
+    }
+    // partitioned tables can only be copied through a query
+    return export(table.getName(), "select * from " + table.getName(), out, format, gzip);
+  }
+
+  @Override
+  public ExportReport exportHistory(String customer, OutputStream out,
+                                    BulkLoadSource.Format format, boolean gzip)
+      throws SQLException, IOException {
+    // COPY takes no parameters, so the customer becomes an escaped literal
+    String literal = "'" + conn.unwrap(BaseConnection.class).escapeLiteral(customer) + "'";
+    return export("history of " + customer,
+            ShopResource.getQuery(EXPORT_HISTORY_FILE).replace("?", literal), out, format, gzip);
+  }
+
+  private ExportReport export(String source, String query, OutputStream out,
+                              BulkLoadSource.Format format, boolean gzip)
+      throws SQLException, IOException {
+    executeOnce(SET_DATESTYLE_FILE);
+    CopyManager manager = conn.unwrap(BaseConnection.class).getCopyAPI();
+    long start = System.nanoTime();
+    CountingOutputStream written = new CountingOutputStream(out);
+    GZIPOutputStream compressed = gzip ? new GZIPOutputStream(written, 1 << 16) : null;
+    CountingOutputStream raw = new CountingOutputStream(gzip ? compressed : written);
+    long rows = manager.copyOut(String.format("COPY (%s) TO STDOUT (FORMAT %s)", query,
+            format.name().toLowerCase()), raw);
+    if (compressed != null) {
+      compressed.finish();
+    }
+    return new ExportReport(source, format, gzip, rows, raw.count, written.count,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+  @Override
+  public long getTotalValue() throws SQLException, IOException {
+    try (ResultSet res = executeQuery(SELECT_TOTAL_VALUE_FILE)) {
+      res.next();
+      return res.getLong(1);
+    }
+  }
+
   @Override
   public ResultSet selectCustomerName() throws SQLException, IOException {
-    PreparedStatement stmt = prepareSelfClosingStatement(SELECT_CUSTOMER_NAME_FILE);
-    return stmt.executeQuery();
+    return executeQuery(SELECT_CUSTOMER_NAME_FILE);
   }
 
   @Override
   public ResultSet selectArticleName() throws SQLException, IOException {
-    PreparedStatement stmt = prepareSelfClosingStatement(SELECT_ARTICLE_NAME_FILE);
-    return stmt.executeQuery();
+    return executeQuery(SELECT_ARTICLE_NAME_FILE);
   }
 
   @Override
   public ResultSet selectPurchaseId() throws SQLException, IOException {
-    PreparedStatement stmt = prepareSelfClosingStatement(SELECT_PURCHASE_ID_FILE);
-    return stmt.executeQuery();
+    return executeQuery(SELECT_PURCHASE_ID_FILE);
+  }
+
+  /**
+   * Counts the bytes written to a stream, which it does not close.
+   */
+  private static final class CountingOutputStream extends FilterOutputStream {
+    private long count;
+
+    private CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
   }
 }
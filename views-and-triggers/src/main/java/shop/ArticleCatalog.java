@@ -0,0 +1,350 @@
+package shop;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class keeps the prices of all articles in memory, so that prices can be displayed
+ * and baskets validated without a round trip to the server.
+ * The catalog is loaded once and then kept up to date by the notifications the trigger
+ * created by {@link AdminShopOperations#createTriggerNotifyArticle} sends for every change
+ * of table article. A change becomes visible shortly after its transaction commits.
+ * If changes cannot be applied, e.g. because the server is unreachable,
+ * the catalog is emptied, so that it never serves prices it knows to be outdated.
+ * The connector must open connections of a user that can read table article.
+ */
+public class ArticleCatalog implements AutoCloseable {
+  /** The channel the trigger on table article notifies. */
+  public static final String CHANNEL = "article_changed";
+
+  private static final String SELECT_ARTICLES_FILE = "selectArticles";
+  private static final String SELECT_ARTICLE_PRICES_FILE = "selectArticlePrices";
+
+  private final DbConnector connector;
+  private final ShopNotificationListener listener;
+  private final NotificationHandler handler = new NotificationHandler() {
+    @Override
+    public void notifications(List<String> payloads) {
+      apply(payloads);
+    }
+
+    @Override
+    public void reset() {
+      reloadOrClear();
+    }
+  };
+  /** The current prices, replaced as a whole by loads and changes, which hold the lock. */
+  private volatile PriceTable prices = PriceTable.EMPTY;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final AtomicLong reloads = new AtomicLong();
+  private final AtomicLong changes = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong lastStalenessMillis = new AtomicLong();
+  private final AtomicLong maxStalenessMillis = new AtomicLong();
+
+  /**
+   * Subscribes to the changes of table article and loads all articles.
+   *
+   * @param connector opens the connections to load articles with
+   * @param listener the listener to receive the changes from
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public ArticleCatalog(DbConnector connector, ShopNotificationListener listener)
+      throws SQLException, IOException {
+    this.connector = connector;
+    this.listener = listener;
+    // subscribe first, so that no change committed after the load is missed
+    listener.subscribe(CHANNEL, handler);
+    try {
+      reload();
+    } catch (SQLException | IOException | RuntimeException e) {
+      listener.unsubscribe(CHANNEL, handler);
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the price of an article.
+   *
+   * @param article the name of the article
+   * @return the price, or empty if the article is unknown
+   */
+  public OptionalInt getPrice(String article) {
+    // read the table once, a reload may replace it in between
+    PriceTable table = prices;
+    int slot = table.find(article);
+    if (slot < 0) {
+      misses.increment();
+      return OptionalInt.empty();
+    }
+    hits.increment();
+    return OptionalInt.of(table.prices[slot]);
+  }
+
+  /**
+   * Computes the total of a basket, as {@link UserShopOperations#newPurchases} would charge it.
+   *
+   * @param items the articles and quantities of the basket
+   * @return the total and the articles that do not exist
+   */
+  public BasketQuote quote(Collection<PurchaseItem> items) {
+    PriceTable table = prices;
+    long total = 0;
+    List<String> unknown = new ArrayList<>();
+    boolean invalidQuantity = false;
+    for (PurchaseItem item : items) {
+      int slot = table.find(item.getArticle());
+      if (slot < 0) {
+        misses.increment();
+        unknown.add(item.getArticle());
+      } else {
+        hits.increment();
+        total += (long) table.prices[slot] * item.getQuantity();
+      }
+      invalidQuantity |= item.getQuantity() < 1;
+    }
+    return new BasketQuote(total, unknown, invalidQuantity);
+  }
+
+  /** Number of articles in the catalog. */
+  public int size() {
+    return prices.size;
+  }
+
+  public Statistics getStatistics() {
+    return new Statistics(hits.sum(), misses.sum(), reloads.get(), changes.get(),
+            failures.get(), lastStalenessMillis.get(), maxStalenessMillis.get());
+  }
+
+  /**
+   * Stops receiving changes. The catalog keeps serving the prices it has.
+   *
+   * @throws SQLException if the listener could not stop listening
+   */
+  @Override
+  public void close() throws SQLException {
+    listener.unsubscribe(CHANNEL, handler);
+  }
+
+  private void apply(List<String> payloads) {
+    long now = System.currentTimeMillis();
+    long earliest = now;
+    Set<String> changed = new HashSet<>();
+    boolean truncated = false;
+    for (String payload : payloads) {
+      int space = payload.indexOf(' ');
+      try {
+        earliest = Math.min(earliest,
+                Long.parseLong(space < 0 ? payload : payload.substring(0, space)));
+      } catch (NumberFormatException e) {
+        // not sent by the trigger, but still a change of table article
+      }
+      if (space < 0) {
+        truncated = true;
+      } else {
+        changed.add(payload.substring(space + 1));
+      }
+    }
+    if (truncated) {
+      reloadOrClear();
+    } else {
+      try {
+        update(changed);
+      } catch (SQLException | IOException e) {
+        failures.incrementAndGet();
+        reloadOrClear();
+      }
+    }
+    long staleness = Math.max(0, System.currentTimeMillis() - earliest);
+    lastStalenessMillis.set(staleness);
+    maxStalenessMillis.accumulateAndGet(staleness, Math::max);
+  }
+
+  private void reloadOrClear() {
+    try {
+      reload();
+    } catch (SQLException | IOException e) {
+      failures.incrementAndGet();
+      prices = PriceTable.EMPTY;
+    }
+  }
+
+  private synchronized void reload() throws SQLException, IOException {
+    List<String> names = new ArrayList<>();
+    List<Integer> values = new ArrayList<>();
+    try (Connection conn = connector.getConnection();
+         PreparedStatement stmt = conn.prepareStatement(
+                 ShopResource.getQuery(SELECT_ARTICLES_FILE));
+         ResultSet res = stmt.executeQuery()) {
+      while (res.next()) {
+        names.add(res.getString(1));
+        values.add(res.getInt(2));
+      }
+    }
+    prices = new PriceTable(names, values);
+    reloads.incrementAndGet();
+  }
+
+  private synchronized void update(Set<String> changed) throws SQLException, IOException {
+    List<String> names = new ArrayList<>();
+    List<Integer> values = new ArrayList<>();
+    try (Connection conn = connector.getConnection();
+         PreparedStatement stmt = conn.prepareStatement(
+                 ShopResource.getQuery(SELECT_ARTICLE_PRICES_FILE))) {
+      stmt.setArray(1, conn.createArrayOf("text", changed.toArray()));
+      try (ResultSet res = stmt.executeQuery()) {
+        while (res.next()) {
+          names.add(res.getString(1));
+          values.add(res.getInt(2));
+        }
+      }
+    }
+    // changed articles that are not found any more have been deleted or renamed
+    PriceTable current = prices;
+    for (int i = 0; i < current.names.length; i++) {
+      if (current.names[i] != null && !changed.contains(current.names[i])) {
+        names.add(current.names[i]);
+        values.add(current.prices[i]);
+      }
+    }
+    prices = new PriceTable(names, values);
+    changes.addAndGet(changed.size());
+  }
+
+  /**
+   * An immutable hash table from article names to prices, with open addressing,
+   * so that prices are stored as primitives without an entry object per article.
+   */
+  private static final class PriceTable {
+    private static final PriceTable EMPTY =
+            new PriceTable(new ArrayList<>(), new ArrayList<>());
+
+    private final String[] names;
+    private final int[] prices;
+    private final int mask;
+    private final int size;
+
+    private PriceTable(List<String> names, List<Integer> prices) {
+      // keep the table at most half full, so that probe sequences stay short
+      int capacity = Integer.highestOneBit(Math.max(1, names.size()) * 2) * 2;
+      this.names = new String[capacity];
+      this.prices = new int[capacity];
+      this.mask = capacity - 1;
+      this.size = names.size();
+      for (int i = 0; i < names.size(); i++) {
+        int slot = hash(names.get(i)) & mask;
+        while (this.names[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        this.names[slot] = names.get(i);
+        this.prices[slot] = prices.get(i);
+      }
+    }
+
+    private int find(String name) {
+      int slot = hash(name) & mask;
+      String candidate;
+      while ((candidate = names[slot]) != null) {
+        if (candidate.equals(name)) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return -1;
+    }
+
+    private static int hash(String name) {
+      int h = name.hashCode();
+      return h ^ (h >>> 16);
+    }
+  }
+
+  /**
+   * An immutable snapshot of the catalog statistics.
+   */
+  public static final class Statistics {
+    private final long hits;
+    private final long misses;
+    private final long reloads;
+    private final long changes;
+    private final long failures;
+    private final long lastStalenessMillis;
+    private final long maxStalenessMillis;
+
+    private Statistics(long hits, long misses, long reloads, long changes, long failures,
+                       long lastStalenessMillis, long maxStalenessMillis) {
+      this.hits = hits;
+      this.misses = misses;
+      this.reloads = reloads;
+      this.changes = changes;
+      this.failures = failures;
+      this.lastStalenessMillis = lastStalenessMillis;
+      this.maxStalenessMillis = maxStalenessMillis;
+    }
+
+    /** Number of lookups of articles in the catalog. */
+    public long getHits() {
+      return hits;
+    }
+
+    /** Number of lookups of articles not in the catalog. */
+    public long getMisses() {
+      return misses;
+    }
+
+    /** Fraction of lookups that found their article, 0 if there were none. */
+    public double getHitRate() {
+      long lookups = hits + misses;
+      return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /** Number of times all articles have been loaded. */
+    public long getReloads() {
+      return reloads;
+    }
+
+    /** Number of changed articles that have been applied one by one. */
+    public long getChanges() {
+      return changes;
+    }
+
+    /** Number of times changes could not be applied. */
+    public long getFailures() {
+      return failures;
+    }
+
+    /**
+     * Time from the earliest change of the last applied batch until the catalog served it,
+     * measured with the clocks of server and client.
+     */
+    public long getLastStalenessMillis() {
+      return lastStalenessMillis;
+    }
+
+    /** The largest staleness of any applied batch. */
+    public long getMaxStalenessMillis() {
+      return maxStalenessMillis;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("hits=%d misses=%d (%.1f%%) reloads=%d changes=%d failures=%d "
+                      + "staleness last=%dms max=%dms", hits, misses, getHitRate() * 100,
+              reloads, changes, failures, lastStalenessMillis, maxStalenessMillis);
+    }
+  }
+}
@@ -0,0 +1,316 @@
+package shop;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.postgresql.core.BaseConnection;
+
+/**
+ * This class executes shop operations asynchronously, on connections borrowed from a pool.
+ * Every operation returns a future immediately and runs when one of a bounded number of
+ * slots is free, so that any number of requests can be in flight while only as many
+ * connections and threads as slots are busy with the database.
+ * On Java 21 and newer, operations run on virtual threads, otherwise on a bounded pool of
+ * platform threads. Note that the driver holds a monitor while it waits for the server,
+ * which pins a virtual thread to its carrier thread for that time.
+ * An operation can be given a timeout, after which its future fails with a TimeoutException.
+ * Cancelling the future or a timeout also cancels the statement running on the server.
+ * As a cancel request reaches the server independently of the statement it was sent for,
+ * the connection of a cancelled statement is closed instead of returned to the pool,
+ * so that a late cancel cannot abort a statement of the next borrower.
+ */
+public class AsyncShopOperations implements AutoCloseable {
+  private static final long KEEP_ALIVE_SECONDS = 60;
+
+  private final ShopConnectionPool pool;
+  private final ExecutorService executor;
+  private final ScheduledThreadPoolExecutor timer;
+  private final Semaphore slots;
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  /**
+   * Creates asynchronous operations.
+   *
+   * @param pool the pool to borrow connections from
+   * @param maxConcurrency the maximum number of operations that use a connection at a time
+   */
+  public AsyncShopOperations(ShopConnectionPool pool, int maxConcurrency) {
+    if (maxConcurrency < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.pool = pool;
+    this.executor = newExecutor(maxConcurrency);
+    this.slots = new Semaphore(maxConcurrency, true);
+    this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread t = new Thread(r, "shop-async-timer");
+      t.setDaemon(true);
+      return t;
+    });
+    timer.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Purchases an article, see {@link UserShopOperations#newPurchase}.
+   *
+   * @param user the customer
+   * @param password the password of the customer
+   * @param article the article to purchase
+   * @param quantity the quantity of this article to purchase
+   * @param timeoutMillis the timeout, or 0 to wait as long as it takes
+   * @return a future of true, iff the balance covered the purchase
+   */
+  public CompletableFuture<Boolean> newPurchase(String user, String password, String article,
+                                                int quantity, long timeoutMillis) {
+    return submit(user, password, timeoutMillis,
+        conn -> new UserShopOperationsImpl(conn).newPurchase(article, quantity));
+  }
+
+  public CompletableFuture<Boolean> newPurchase(String user, String password, String article,
+                                                int quantity) {
+    return newPurchase(user, password, article, quantity, 0);
+  }
+
+  /**
+   * Cancels today's purchases of an article, see {@link UserShopOperations#cancelPurchase}.
+   *
+   * @param user the customer
+   * @param password the password of the customer
+   * @param article the article to cancel
+   * @param timeoutMillis the timeout, or 0 to wait as long as it takes
+   * @return a future that completes when the purchases have been cancelled
+   */
+  public CompletableFuture<Void> cancelPurchase(String user, String password, String article,
+                                                long timeoutMillis) {
+    return submit(user, password, timeoutMillis, conn -> {
+      new UserShopOperationsImpl(conn).cancelPurchase(article);
+      return null;
+    });
+  }
+
+  public CompletableFuture<Void> cancelPurchase(String user, String password, String article) {
+    return cancelPurchase(user, password, article, 0);
+  }
+
+  /**
+   * Reads the purchase history, see {@link UserShopOperations#selectHistory}.
+   *
+   * @param user the customer
+   * @param password the password of the customer
+   * @param timeoutMillis the timeout, or 0 to wait as long as it takes
+   * @return a future of the history, newest first
+   */
+  public CompletableFuture<List<HistoryEntry>> selectHistory(String user, String password,
+                                                             long timeoutMillis) {
+    return submit(user, password, timeoutMillis, conn -> {
+      List<HistoryEntry> history = new ArrayList<>();
+      try (ResultSet res = new UserShopOperationsImpl(conn).selectHistory()) {
+        while (res.next()) {
+          history.add(HistoryEntry.of(res));
+        }
+      }
+      return history;
+    });
+  }
+
+  public CompletableFuture<List<HistoryEntry>> selectHistory(String user, String password) {
+    return selectHistory(user, password, 0);
+  }
+
+  /**
+   * Reads the balance of a customer, see {@link AdminShopOperations#getBalance}.
+   *
+   * @param admin the admin user
+   * @param adminPassword the password of the admin user
+   * @param ofUser the customer
+   * @param timeoutMillis the timeout, or 0 to wait as long as it takes
+   * @return a future of the balance
+   */
+  public CompletableFuture<Integer> getBalance(String admin, String adminPassword, String ofUser,
+                                               long timeoutMillis) {
+    return submit(admin, adminPassword, timeoutMillis,
+        conn -> new AdminShopOperationsImpl(conn).getBalance(ofUser));
+  }
+
+  public CompletableFuture<Integer> getBalance(String admin, String adminPassword,
+                                               String ofUser) {
+    return getBalance(admin, adminPassword, ofUser, 0);
+  }
+
+  /** Number of operations that have been submitted, but are not done yet. */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * Stops accepting operations. Operations submitted before still run and time out,
+   * operations submitted afterwards fail with a {@link RejectedExecutionException}.
+   * The pool is not closed.
+   */
+  @Override
+  public void close() {
+    executor.shutdown();
+    timer.shutdown();
+  }
+
+  /** An operation on a borrowed connection. */
+  private interface Call<T> {
+    T execute(Connection conn) throws SQLException, IOException;
+  }
+
+  private <T> CompletableFuture<T> submit(String user, String password, long timeoutMillis,
+                                          Call<T> call) {
+    if (timeoutMillis < 0) {
+      throw new IllegalArgumentException();
+    }
+    Operation<T> operation = new Operation<>(user, password, call);
+    inFlight.incrementAndGet();
+    operation.whenComplete((result, error) -> inFlight.decrementAndGet());
+    try {
+      if (timeoutMillis > 0) {
+        ScheduledFuture<?> timeout = timer.schedule(() -> operation.timeOut(timeoutMillis),
+                timeoutMillis, TimeUnit.MILLISECONDS);
+        operation.whenComplete((result, error) -> timeout.cancel(false));
+      }
+      executor.execute(operation);
+    } catch (RejectedExecutionException e) {
+      // closed, completing the operation undoes the count and cancels the timeout
+      operation.completeExceptionally(e);
+    }
+    return operation;
+  }
+
+  /**
+   * The future of one operation, which also runs it.
+   */
+  private final class Operation<T> extends CompletableFuture<T> implements Runnable {
+    private final String user;
+    private final String password;
+    private final Call<T> call;
+
+    /** The connection while the operation runs on it, guarded by this. */
+    private BaseConnection running;
+
+    /** Whether the operation has been cancelled or timed out, guarded by this. */
+    private boolean abandoned;
+
+    /** Whether a cancel request has been sent for the connection, guarded by this. */
+    private boolean cancelSent;
+
+    private Operation(String user, String password, Call<T> call) {
+      this.user = user;
+      this.password = password;
+      this.call = call;
+    }
+
+    @Override
+    public void run() {
+      if (isDone()) {
+        return;
+      }
+      try {
+        slots.acquire();
+      } catch (InterruptedException e) {
+        completeExceptionally(e);
+        return;
+      }
+      try (Connection conn = pool.getConnection(user, password)) {
+        synchronized (this) {
+          if (isDone() || abandoned) {
+            return;
+          }
+          running = conn.unwrap(BaseConnection.class);
+        }
+        try {
+          complete(call.execute(conn));
+        } finally {
+          boolean discard;
+          synchronized (this) {
+            running = null;
+            discard = cancelSent;
+          }
+          if (discard) {
+            pool.discard(conn);
+          }
+        }
+      } catch (SQLException | IOException | RuntimeException e) {
+        // the error of a cancelled statement is not the outcome of an abandoned operation
+        if (!isAbandoned()) {
+          completeExceptionally(e);
+        }
+      } finally {
+        slots.release();
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      abandon();
+      return super.cancel(mayInterruptIfRunning);
+    }
+
+    private void timeOut(long timeoutMillis) {
+      if (abandon()) {
+        completeExceptionally(new TimeoutException(
+                "shop operation timed out after " + timeoutMillis + " ms"));
+      }
+    }
+
+    /**
+     * Cancels the running statement before the future is completed, so that callers
+     * who see the future fail can rely on the statement being cancelled already.
+     */
+    private synchronized boolean abandon() {
+      if (isDone()) {
+        return false;
+      }
+      abandoned = true;
+      if (running != null) {
+        cancelSent = true;
+        try {
+          running.cancelQuery();
+        } catch (SQLException ignored) {
+          // the statement runs to its end, but its result is discarded
+        }
+      }
+      return true;
+    }
+
+    private synchronized boolean isAbandoned() {
+      return abandoned;
+    }
+  }
+
+  private static ExecutorService newExecutor(int maxConcurrency) {
+    try {
+      // Executors.newVirtualThreadPerTaskExecutor() exists from Java 21 on
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+              .invoke(null);
+    } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+      AtomicInteger threads = new AtomicInteger();
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency,
+              KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "shop-async-" + threads.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+              });
+      executor.allowCoreThreadTimeOut(true);
+      return executor;
+    }
+  }
+}
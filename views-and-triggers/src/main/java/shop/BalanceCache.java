@@ -0,0 +1,308 @@
+package shop;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class caches the balances read by {@link AdminShopOperations#getBalance} and
+ * {@link AdminShopOperations#getBalances}, and can be shared by several admin operation
+ * instances, see {@link AdminShopOperations#setBalanceCache}.
+ * The trigger created by {@link AdminShopOperations#createTriggerNotifyBalance} records the
+ * customers whose balance changed in table balance_change, which only the admin can read.
+ * The cache polls that table on a connection of its own and evicts a balance once its change
+ * has been read, so a cached balance may be outdated for about one poll interval after the
+ * change committed. Purchases send no notifications, as these would let only one purchase
+ * transaction commit at a time and tell every user of the database who spends money.
+ * The connector must open connections of the admin.
+ */
+public class BalanceCache implements AutoCloseable {
+  private static final String SELECT_TRANSACTION_HORIZON_FILE = "selectTransactionHorizon";
+  private static final String SELECT_BALANCE_CHANGES_FILE = "selectBalanceChanges";
+
+  /** Number of version counters the names are spread over. */
+  private static final int STRIPES = 256;
+
+  private final DbConnector connector;
+  private final long pollMillis;
+  private final ConcurrentMap<String, Integer> balances = new ConcurrentHashMap<>();
+
+  /**
+   * Counts the evictions of the names of each stripe, so that a balance read from the server
+   * before its change is not cached after the change has been polled.
+   */
+  private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+
+  private final Thread poller;
+  private volatile boolean closed;
+
+  /** The connection to poll with, used by the poller only after the constructor. */
+  private Connection conn;
+  /** All changes of transactions below this id have been polled, used by the poller only. */
+  private long horizon;
+  /**
+   * The transactions of the changes polled at or above the horizon by name, which are read
+   * again until the horizon passes them, used by the poller only.
+   */
+  private final Map<String, Long> polled = new HashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder invalidations = new LongAdder();
+  private final LatencyHistogram latencies = new LatencyHistogram();
+
+  /**
+   * Creates an empty cache that polls the balance changes.
+   *
+   * @param connector opens the connection to poll with, also after it has been lost
+   * @param pollMillis the time between two polls in milliseconds
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public BalanceCache(DbConnector connector, long pollMillis) throws SQLException, IOException {
+    if (pollMillis <= 0) {
+      throw new IllegalArgumentException();
+    }
+    this.connector = connector;
+    this.pollMillis = pollMillis;
+    conn = connector.getConnection();
+    try {
+      horizon = readHorizon();
+    } catch (SQLException | IOException | RuntimeException e) {
+      conn.close();
+      throw e;
+    }
+    this.poller = new Thread(this::poll, "shop-balance-cache");
+    poller.setDaemon(true);
+    poller.start();
+  }
+
+  /** Number of cached balances. */
+  public int size() {
+    return balances.size();
+  }
+
+  /**
+   * Returns the latencies of all balance lookups through this cache,
+   * including the round trips of misses.
+   *
+   * @return the live histogram
+   */
+  public LatencyHistogram getLatencies() {
+    return latencies;
+  }
+
+  public Statistics getStatistics() {
+    return new Statistics(hits.sum(), misses.sum(), invalidations.sum(), balances.size());
+  }
+
+  /**
+   * Stops polling the changes and empties the cache, as it could not be kept up to date.
+   *
+   * @throws SQLException if the connection to poll with could not be closed
+   */
+  @Override
+  public void close() throws SQLException {
+    closed = true;
+    poller.interrupt();
+    try {
+      poller.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    clear();
+    if (conn != null) {
+      conn.close();
+    }
+  }
+
+  /**
+   * Returns a cached balance and counts the lookup.
+   *
+   * @param name the customer
+   * @return the balance, or null if it is not cached
+   */
+  Integer get(String name) {
+    Integer balance = balances.get(name);
+    if (balance == null) {
+      misses.increment();
+    } else {
+      hits.increment();
+    }
+    return balance;
+  }
+
+  /**
+   * Returns the version of a name, to be taken before its balance is read from the server.
+   *
+   * @param name the customer
+   * @return the version
+   */
+  long version(String name) {
+    return versions.get(stripe(name));
+  }
+
+  /**
+   * Caches a balance read from the server, unless it may have changed since it was read.
+   *
+   * @param name the customer
+   * @param balance the balance
+   * @param version the version of the name taken before the balance was read
+   */
+  void put(String name, int balance, long version) {
+    int stripe = stripe(name);
+    if (versions.get(stripe) == version) {
+      balances.put(name, balance);
+      // an eviction may have happened between the check and the put
+      if (versions.get(stripe) != version) {
+        balances.remove(name);
+      }
+    }
+  }
+
+  void record(long nanos) {
+    latencies.record(nanos);
+  }
+
+  private void poll() {
+    while (!closed) {
+      try {
+        Thread.sleep(pollMillis);
+        if (conn == null || conn.isClosed()) {
+          conn = connector.getConnection();
+        }
+        readChanges();
+      } catch (InterruptedException e) {
+        return;
+      } catch (SQLException | IOException e) {
+        // changes are missed while the table cannot be read
+        clear();
+        closeConnection();
+      }
+    }
+  }
+
+  /**
+   * Evicts the balances that changed since the last poll.
+   */
+  private void readChanges() throws SQLException, IOException {
+    long next = readHorizon();
+    try (PreparedStatement stmt = conn.prepareStatement(
+            ShopResource.getQuery(SELECT_BALANCE_CHANGES_FILE))) {
+      stmt.setLong(1, horizon);
+      try (ResultSet res = stmt.executeQuery()) {
+        while (res.next()) {
+          String name = res.getString(1);
+          Long xact = res.getLong(2);
+          if (xact.equals(polled.put(name, xact))) {
+            continue;
+          }
+          if (name.isEmpty()) {
+            clear();
+          } else {
+            evict(name);
+          }
+        }
+      }
+    }
+    horizon = next;
+    polled.values().removeIf(xact -> xact < next);
+  }
+
+  private long readHorizon() throws SQLException, IOException {
+    try (PreparedStatement stmt = conn.prepareStatement(
+            ShopResource.getQuery(SELECT_TRANSACTION_HORIZON_FILE));
+         ResultSet res = stmt.executeQuery()) {
+      res.next();
+      return res.getLong(1);
+    }
+  }
+
+  private void evict(String name) {
+    versions.incrementAndGet(stripe(name));
+    if (balances.remove(name) != null) {
+      invalidations.increment();
+    }
+  }
+
+  private void clear() {
+    for (int i = 0; i < STRIPES; i++) {
+      versions.incrementAndGet(i);
+    }
+    invalidations.add(balances.size());
+    balances.clear();
+  }
+
+  private void closeConnection() {
+    try {
+      if (conn != null) {
+        conn.close();
+      }
+    } catch (SQLException ignored) {
+      // the connection is opened again by the next poll
+    }
+    conn = null;
+  }
+
+  private static int stripe(String name) {
+    int h = name.hashCode();
+    return (h ^ (h >>> 16)) & (STRIPES - 1);
+  }
+
+  /**
+   * An immutable snapshot of the cache statistics.
+   */
+  public static final class Statistics {
+    private final long hits;
+    private final long misses;
+    private final long invalidations;
+    private final int size;
+
+    private Statistics(long hits, long misses, long invalidations, int size) {
+      this.hits = hits;
+      this.misses = misses;
+      this.invalidations = invalidations;
+      this.size = size;
+    }
+
+    /** Number of balances served from the cache. */
+    public long getHits() {
+      return hits;
+    }
+
+    /** Number of balances that had to be read from the server. */
+    public long getMisses() {
+      return misses;
+    }
+
+    /** Fraction of balances served from the cache, 0 if there were no lookups. */
+    public double getHitRate() {
+      long lookups = hits + misses;
+      return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /** Number of cached balances evicted because they changed. */
+    public long getInvalidations() {
+      return invalidations;
+    }
+
+    public int getSize() {
+      return size;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("hits=%d misses=%d (%.1f%%) invalidations=%d size=%d", hits, misses,
+              getHitRate() * 100, invalidations, size);
+    }
+  }
+}
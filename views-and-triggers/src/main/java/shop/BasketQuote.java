@@ -0,0 +1,59 @@
+package shop;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class is the price of a basket as computed by an {@link ArticleCatalog},
+ * before it is purchased.
+ */
+public final class BasketQuote {
+
+  /** Sum of quantity times price of all known articles. */
+  private final long total;
+
+  /** Articles of the basket that are not in the catalog. */
+  private final List<String> unknownArticles;
+
+  /** Whether a line has a quantity less than 1. */
+  private final boolean invalidQuantity;
+
+  BasketQuote(long total, List<String> unknownArticles, boolean invalidQuantity) {
+    this.total = total;
+    this.unknownArticles = Collections.unmodifiableList(unknownArticles);
+    this.invalidQuantity = invalidQuantity;
+  }
+
+  public long getTotal() {
+    return total;
+  }
+
+  public List<String> getUnknownArticles() {
+    return unknownArticles;
+  }
+
+  /**
+   * Returns whether the basket can be purchased at all, i.e. all articles exist
+   * and all quantities are positive.
+   *
+   * @return true, iff the basket is valid
+   */
+  public boolean isValid() {
+    return unknownArticles.isEmpty() && !invalidQuantity;
+  }
+
+  /**
+   * Returns whether a balance covers the basket.
+   *
+   * @param balance the balance of the customer
+   * @return true, iff the basket is valid and its total does not exceed the balance
+   */
+  public boolean isAffordable(int balance) {
+    return isValid() && total <= balance;
+  }
+
+  @Override
+  public String toString() {
+    return isValid() ? "total " + total : "invalid, unknown articles " + unknownArticles;
+  }
+}
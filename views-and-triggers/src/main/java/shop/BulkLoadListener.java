@@ -0,0 +1,19 @@
+package shop;
+
+/**
+ * Receives the progress of a bulk load.
+ */
+public interface BulkLoadListener {
+
+  /**
+   * Called about once per second while a table is loaded, and once when it is done.
+   * For binary input, rows are only known when the table is done.
+   *
+   * @param table the table being loaded
+   * @param rows the number of rows sent so far
+   * @param bytes the number of decompressed bytes sent so far
+   * @param elapsedMillis the time since the load of this table started
+   * @param done whether the table has been loaded completely
+   */
+  void progress(String table, long rows, long bytes, long elapsedMillis, boolean done);
+}
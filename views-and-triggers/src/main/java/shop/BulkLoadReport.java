@@ -0,0 +1,47 @@
+package shop;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class summarizes a finished bulk load.
+ */
+public final class BulkLoadReport {
+
+  /** Loaded rows by table, in load order. */
+  private final Map<String, Long> rows;
+
+  /** Time of the whole load including constraint creation. */
+  private final long elapsedMillis;
+
+  BulkLoadReport(Map<String, Long> rows, long elapsedMillis) {
+    this.rows = Collections.unmodifiableMap(new LinkedHashMap<>(rows));
+    this.elapsedMillis = elapsedMillis;
+  }
+
+  public Map<String, Long> getRows() {
+    return rows;
+  }
+
+  public long getTotalRows() {
+    long total = 0;
+    for (long r : rows.values()) {
+      total += r;
+    }
+    return total;
+  }
+
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+
+  public double getRowsPerSecond() {
+    return elapsedMillis == 0 ? 0 : getTotalRows() * 1000.0 / elapsedMillis;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s in %d ms (%.0f rows/s)", rows, elapsedMillis, getRowsPerSecond());
+  }
+}
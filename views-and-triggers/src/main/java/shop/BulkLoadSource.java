@@ -0,0 +1,196 @@
+package shop;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * This class describes the input of one table for a bulk load:
+ * where the data comes from, its COPY format and whether it is gzip-compressed.
+ */
+public final class BulkLoadSource {
+
+  /** The formats understood by COPY. */
+  public enum Format {
+    TEXT("text"), CSV("csv"), BINARY("binary");
+
+    private final String option;
+
+    Format(String option) {
+      this.option = option;
+    }
+  }
+
+  /** Opens the raw input of a source. */
+  public interface Input {
+    InputStream open() throws IOException;
+  }
+
+  private final Input input;
+
+  private final Format format;
+
+  private final boolean gzip;
+
+  /**
+   * Creates a source.
+   *
+   * @param input opens the raw input, which is only read once
+   * @param format the COPY format of the decompressed input
+   * @param gzip whether the raw input is gzip-compressed
+   */
+  public BulkLoadSource(Input input, Format format, boolean gzip) {
+    this.input = input;
+    this.format = format;
+    this.gzip = gzip;
+  }
+
+  /**
+   * Returns a source for one of the bundled .data files.
+   *
+   * @param name name of the data resource
+   * @return a text format source
+   */
+  public static BulkLoadSource bundled(String name) {
+    return new BulkLoadSource(() -> {
+      InputStream s = ShopResource.getData(name);
+      if (s == null) {
+        throw new FileNotFoundException("no data file " + name);
+      }
+      return s;
+    }, Format.TEXT, false);
+  }
+
+  /**
+   * Returns a source for a file. Files ending in .gz are decompressed.
+   *
+   * @param file the file to load
+   * @param format the COPY format of the file content
+   * @return a source reading the file
+   */
+  public static BulkLoadSource file(Path file, Format format) {
+    return new BulkLoadSource(() -> Files.newInputStream(file), format,
+            file.getFileName().toString().endsWith(".gz"));
+  }
+
+  /**
+   * Returns a source with only those rows of this text format source
+   * whose value in a column passes a filter, e.g. the rows of one shard.
+   *
+   * @param column the index of the column, starting at 0
+   * @param keep decides by the raw text of the value whether a row is kept
+   * @return the filtered source
+   */
+  public BulkLoadSource filter(int column, Predicate<String> keep) {
+    if (format != Format.TEXT) {
+      throw new IllegalArgumentException("only text format sources can be filtered");
+    }
+    return new BulkLoadSource(() -> new FilteredInputStream(open(), column, keep),
+            Format.TEXT, false);
+  }
+
+  public Format getFormat() {
+    return format;
+  }
+
+  public boolean isGzip() {
+    return gzip;
+  }
+
+  /**
+   * Returns the COPY command loading this source into a table.
+   *
+   * @param table the name of the table
+   * @return the command
+   */
+  String copyCommand(String table) {
+    return String.format("COPY %s FROM STDIN (FORMAT %s)", table, format.option);
+  }
+
+  /**
+   * Opens the decompressed input.
+   *
+   * @return the input in this source's COPY format
+   * @throws IOException if the input could not be opened
+   */
+  public InputStream open() throws IOException {
+    InputStream s = input.open();
+    return gzip ? new GZIPInputStream(s, 1 << 16) : new BufferedInputStream(s, 1 << 16);
+  }
+
+  /**
+   * Passes on the lines of a text format input whose value in a column is kept by a filter.
+   */
+  private static final class FilteredInputStream extends InputStream {
+    private final BufferedReader reader;
+    private final int column;
+    private final Predicate<String> keep;
+    private byte[] line = new byte[0];
+    private int position;
+
+    private FilteredInputStream(InputStream in, int column, Predicate<String> keep) {
+      this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+      this.column = column;
+      this.keep = keep;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return nextLine() ? line[position++] & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!nextLine()) {
+        return -1;
+      }
+      int n = Math.min(len, line.length - position);
+      System.arraycopy(line, position, b, off, n);
+      position += n;
+      return n;
+    }
+
+    /** Makes sure that the rest of a kept line is available, unless the input has ended. */
+    private boolean nextLine() throws IOException {
+      while (position == line.length) {
+        String next = reader.readLine();
+        if (next == null) {
+          return false;
+        }
+        if (keep.test(field(next))) {
+          line = (next + "\n").getBytes(StandardCharsets.UTF_8);
+          position = 0;
+        }
+      }
+      return true;
+    }
+
+    private String field(String text) {
+      int start = 0;
+      for (int i = 0; i < column; i++) {
+        start = text.indexOf('\t', start) + 1;
+        if (start == 0) {
+          return "";
+        }
+      }
+      int end = text.indexOf('\t', start);
+      return end < 0 ? text.substring(start) : text.substring(start, end);
+    }
+
+    @Override
+    public void close() throws IOException {
+      reader.close();
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package shop;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+
+/**
+ * This class loads the customer, article and purchase tables in bulk.
+ * Customers and articles are loaded in parallel on connections of their own,
+ * purchases afterwards, as they refer to both.
+ * Optionally, keys, foreign keys and indexes are dropped before the load
+ * and created again afterwards, which is much faster than maintaining them row by row.
+ * If the load fails in between, they have to be created again by repeating the load.
+ */
+public class BulkLoader {
+  private static final String SET_DATESTYLE_FILE = "setDatestyle";
+  private static final String DROP_CONSTRAINTS_FILE = "dropConstraints";
+  private static final String ADD_CONSTRAINTS_FILE = "addConstraints";
+  private static final String CREATE_INDEXES_FILE = "createIndexes";
+  private static final String SYNC_PURCHASE_ID_FILE = "syncPurchaseId";
+  private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final DbConnector connector;
+  private final BulkLoadSource customers;
+  private final BulkLoadSource articles;
+  private final BulkLoadSource purchases;
+  private boolean deferConstraints;
+  private BulkLoadListener listener = (table, rows, bytes, elapsedMillis, done) -> { };
+
+  /**
+   * Creates a loader.
+   *
+   * @param connector opens the additional connections for parallel loads
+   * @param customers the source of the customer table
+   * @param articles the source of the article table
+   * @param purchases the source of the purchase table
+   */
+  public BulkLoader(DbConnector connector, BulkLoadSource customers, BulkLoadSource articles,
+                    BulkLoadSource purchases) {
+    this.connector = connector;
+    this.customers = customers;
+    this.articles = articles;
+    this.purchases = purchases;
+  }
+
+  /**
+   * Returns a loader for the bundled .data files.
+   *
+   * @param connector opens the additional connections for parallel loads
+   * @return the loader
+   */
+  public static BulkLoader bundled(DbConnector connector) {
+    return new BulkLoader(connector, BulkLoadSource.bundled("customer"),
+            BulkLoadSource.bundled("article"), BulkLoadSource.bundled("purchase"));
+  }
+
+  /**
+   * Sets whether keys, foreign keys and indexes are created only after the load.
+   *
+   * @param deferConstraints true, to drop and recreate them around the load
+   * @return this loader
+   */
+  public BulkLoader setDeferConstraints(boolean deferConstraints) {
+    this.deferConstraints = deferConstraints;
+    return this;
+  }
+
+  /**
+   * Sets the listener that receives the progress of each table.
+   *
+   * @param listener the listener
+   * @return this loader
+   */
+  public BulkLoader setListener(BulkLoadListener listener) {
+    this.listener = listener;
+    return this;
+  }
+
+  /**
+   * Loads all three tables, which must exist and should be empty.
+   *
+   * @param conn the connection to load the purchases and manage the constraints with
+   * @return the number of loaded rows per table and the total time
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if a source could not be read
+   */
+  public BulkLoadReport load(Connection conn) throws SQLException, IOException {
+    long start = System.nanoTime();
+    Map<String, Long> rows = new LinkedHashMap<>();
+    if (deferConstraints) {
+      execute(conn, DROP_CONSTRAINTS_FILE);
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<Long> customerRows = executor.submit(() -> loadWithOwnConnection("customer",
+              customers));
+      Future<Long> articleRows = executor.submit(() -> loadWithOwnConnection("article",
+              articles));
+      rows.put("customer", await(customerRows));
+      rows.put("article", await(articleRows));
+    } finally {
+      executor.shutdownNow();
+    }
+    rows.put("purchase", copy(conn, "purchase", purchases));
+    if (deferConstraints) {
+      execute(conn, ADD_CONSTRAINTS_FILE);
+      execute(conn, CREATE_INDEXES_FILE);
+    }
+    execute(conn, SYNC_PURCHASE_ID_FILE);
+    return new BulkLoadReport(rows, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+  private long loadWithOwnConnection(String table, BulkLoadSource source)
+      throws SQLException, IOException {
+    try (Connection conn = connector.getConnection()) {
+      return copy(conn, table, source);
+    }
+  }
+
+  private long copy(Connection conn, String table, BulkLoadSource source)
+      throws SQLException, IOException {
+    execute(conn, SET_DATESTYLE_FILE);
+    CopyManager manager = conn.unwrap(BaseConnection.class).getCopyAPI();
+    long start = System.nanoTime();
+    try (ProgressInputStream in = new ProgressInputStream(source.open(), table,
+            source.getFormat() != BulkLoadSource.Format.BINARY, start)) {
+      long rows = manager.copyIn(source.copyCommand(table), in);
+      listener.progress(table, rows, in.bytes,
+              TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), true);
+      return rows;
+    }
+  }
+
+  private static void execute(Connection conn, String name) throws SQLException, IOException {
+    try (Statement stmt = conn.createStatement()) {
+      stmt.execute(ShopResource.getQuery(name));
+    }
+  }
+
+  private static long await(Future<Long> load) throws SQLException, IOException {
+    try {
+      return load.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("interrupted while loading", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SQLException) {
+        throw (SQLException) cause;
+      }
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new SQLException("bulk load failed", cause);
+    }
+  }
+
+  /**
+   * Counts the bytes and lines passing to COPY and reports them to the listener.
+   */
+  private final class ProgressInputStream extends FilterInputStream {
+    private final String table;
+    private final boolean countLines;
+    private final long start;
+    private long nextReport;
+    private long bytes;
+    private long lines;
+
+    private ProgressInputStream(InputStream in, String table, boolean countLines, long start) {
+      super(in);
+      this.table = table;
+      this.countLines = countLines;
+      this.start = start;
+      this.nextReport = start + PROGRESS_INTERVAL_NANOS;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        count(b == '\n' ? 1 : 0, 1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int n = super.read(buffer, offset, length);
+      if (n > 0) {
+        int newLines = 0;
+        if (countLines) {
+          for (int i = offset; i < offset + n; i++) {
+            if (buffer[i] == '\n') {
+              newLines++;
+            }
+          }
+        }
+        count(newLines, n);
+      }
+      return n;
+    }
+
+    private void count(int newLines, int n) {
+      lines += newLines;
+      bytes += n;
+      long now = System.nanoTime();
+      if (now >= nextReport) {
+        nextReport = now + PROGRESS_INTERVAL_NANOS;
+        listener.progress(table, countLines ? lines : 0, bytes,
+                TimeUnit.NANOSECONDS.toMillis(now - start), false);
+      }
+    }
+  }
+}
@@ -0,0 +1,11 @@
+package shop;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Opens new connections to the shop database, e.g. to load tables in parallel.
+ */
+public interface DbConnector {
+  Connection getConnection() throws SQLException;
+}
@@ -0,0 +1,79 @@
+package shop;
+
+/**
+ * This class summarizes a finished export.
+ */
+public final class ExportReport {
+
+  /** The exported table, or a description of the exported query. */
+  private final String source;
+
+  private final BulkLoadSource.Format format;
+
+  private final boolean gzip;
+
+  private final long rows;
+
+  /** Bytes as produced by the server, before compression. */
+  private final long rawBytes;
+
+  /** Bytes written to the output stream, after compression. */
+  private final long bytes;
+
+  private final long elapsedMillis;
+
+  ExportReport(String source, BulkLoadSource.Format format, boolean gzip, long rows,
+               long rawBytes, long bytes, long elapsedMillis) {
+    this.source = source;
+    this.format = format;
+    this.gzip = gzip;
+    this.rows = rows;
+    this.rawBytes = rawBytes;
+    this.bytes = bytes;
+    this.elapsedMillis = elapsedMillis;
+  }
+
+  public String getSource() {
+    return source;
+  }
+
+  public BulkLoadSource.Format getFormat() {
+    return format;
+  }
+
+  public boolean isGzip() {
+    return gzip;
+  }
+
+  public long getRows() {
+    return rows;
+  }
+
+  public long getRawBytes() {
+    return rawBytes;
+  }
+
+  public long getBytes() {
+    return bytes;
+  }
+
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+
+  public double getRowsPerSecond() {
+    return elapsedMillis == 0 ? 0 : rows * 1000.0 / elapsedMillis;
+  }
+
+  /** Bytes written to the output stream per second. */
+  public double getBytesPerSecond() {
+    return elapsedMillis == 0 ? 0 : bytes * 1000.0 / elapsedMillis;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s as %s%s: %d rows, %d bytes in %d ms (%.0f rows/s, %.0f bytes/s)",
+            source, format.name().toLowerCase(), gzip ? " (gzip)" : "", rows, bytes,
+            elapsedMillis, getRowsPerSecond(), getBytesPerSecond());
+  }
+}
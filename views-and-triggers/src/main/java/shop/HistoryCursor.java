@@ -0,0 +1,75 @@
+package shop;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * This class streams the purchase history of a user, newest purchase first.
+ * Rows are fetched from a server-side cursor in chunks of the fetch size,
+ * so memory use does not depend on the length of the history.
+ * The cursor runs in a transaction of its own connection, which ends when it is closed.
+ */
+public final class HistoryCursor implements AutoCloseable {
+
+  private final Connection conn;
+
+  private final PreparedStatement stmt;
+
+  private final ResultSet res;
+
+  /** Whether the connection was in auto-commit mode before the cursor was opened. */
+  private final boolean autoCommit;
+
+  private boolean exhausted;
+
+  HistoryCursor(Connection conn, PreparedStatement stmt, int fetchSize) throws SQLException {
+    if (fetchSize < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.conn = conn;
+    this.stmt = stmt;
+    this.autoCommit = conn.getAutoCommit();
+    // the driver only uses a server-side cursor inside a transaction
+    conn.setAutoCommit(false);
+    try {
+      stmt.setFetchSize(fetchSize);
+      this.res = stmt.executeQuery();
+    } catch (SQLException e) {
+      restore();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the next entry of the history.
+   *
+   * @return the next entry, or null if the end of the history has been reached
+   * @throws SQLException if a database access error occurs
+   */
+  public HistoryEntry next() throws SQLException {
+    if (exhausted || !res.next()) {
+      exhausted = true;
+      return null;
+    }
+    return HistoryEntry.of(res);
+  }
+
+  @Override
+  public void close() throws SQLException {
+    try {
+      res.close();
+      stmt.close();
+    } finally {
+      restore();
+    }
+  }
+
+  private void restore() throws SQLException {
+    if (autoCommit) {
+      conn.commit();
+      conn.setAutoCommit(true);
+    }
+  }
+}
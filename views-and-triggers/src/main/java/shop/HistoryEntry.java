@@ -0,0 +1,67 @@
+package shop;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+/**
+ * This class represents one row of the purchase history of a user.
+ */
+public final class HistoryEntry {
+
+  private final int id;
+
+  private final LocalDate date;
+
+  private final String article;
+
+  private final int quantity;
+
+  /** The price of the purchase, i.e. quantity times article price. */
+  private final int price;
+
+  public HistoryEntry(int id, LocalDate date, String article, int quantity, int price) {
+    this.id = id;
+    this.date = date;
+    this.article = article;
+    this.quantity = quantity;
+    this.price = price;
+  }
+
+  /**
+   * Reads the current row of a result set over the history view.
+   *
+   * @param res the result set, positioned on a row
+   * @return the history entry of that row
+   * @throws SQLException if a database access error occurs
+   */
+  static HistoryEntry of(ResultSet res) throws SQLException {
+    return new HistoryEntry(res.getInt(1), res.getObject(2, LocalDate.class), res.getString(3),
+            res.getInt(4), res.getInt(5));
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  public LocalDate getDate() {
+    return date;
+  }
+
+  public String getArticle() {
+    return article;
+  }
+
+  public int getQuantity() {
+    return quantity;
+  }
+
+  public int getPrice() {
+    return price;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("#%d %s %d x %s for %d", id, date, quantity, article, price);
+  }
+}
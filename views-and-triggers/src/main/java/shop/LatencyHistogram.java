@@ -0,0 +1,168 @@
+package shop;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class counts latencies in logarithmic buckets, so that percentiles can be read
+ * with a bounded relative error of about 3% while recording takes constant time and memory.
+ * Latencies can be recorded concurrently by several threads. The buckets are striped
+ * by thread, like the totals, so that threads recording similar latencies do not contend
+ * on the same counters; a stripe is only allocated when a thread first records into it.
+ */
+public final class LatencyHistogram {
+  /** Each power of two is split into 2^SUB_BUCKET_BITS buckets. */
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+  /** The number of bucket stripes, a power of two. */
+  private static final int STRIPES = Math.min(64,
+          Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2);
+
+  private final AtomicReferenceArray<AtomicLongArray> counts =
+          new AtomicReferenceArray<>(STRIPES);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  /**
+   * Records a latency.
+   *
+   * @param nanos the latency in nanoseconds, negative values are counted as 0
+   */
+  public void record(long nanos) {
+    long value = Math.max(0, nanos);
+    stripe().incrementAndGet(bucket(value));
+    count.increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  /** Number of recorded latencies. */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /** Largest recorded latency in nanoseconds, 0 if none has been recorded. */
+  public long getMax() {
+    return max.get();
+  }
+
+  /** Mean of the recorded latencies in nanoseconds, 0 if none has been recorded. */
+  public double getMean() {
+    long n = count.sum();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * Returns a percentile of the recorded latencies.
+   *
+   * @param percentile the percentile between 0 and 100, e.g. 99.9
+   * @return the upper bound of the bucket holding the percentile, in nanoseconds,
+   *     or 0 if no latency has been recorded
+   */
+  public long getPercentile(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException();
+    }
+    long n = count.sum();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += countOf(i);
+      if (seen >= rank) {
+        return Math.min(upperBound(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * Adds all latencies recorded by another histogram to this one.
+   *
+   * @param other the histogram to add
+   */
+  public void add(LatencyHistogram other) {
+    AtomicLongArray stripe = stripe();
+    for (int i = 0; i < BUCKETS; i++) {
+      long c = other.countOf(i);
+      if (c != 0) {
+        stripe.addAndGet(i, c);
+      }
+    }
+    count.add(other.count.sum());
+    sum.add(other.sum.sum());
+    max.accumulate(other.max.get());
+  }
+
+  /**
+   * Forgets all recorded latencies. Latencies recorded concurrently may be kept in part.
+   */
+  public void reset() {
+    for (int s = 0; s < STRIPES; s++) {
+      AtomicLongArray stripe = counts.get(s);
+      if (stripe != null) {
+        for (int i = 0; i < BUCKETS; i++) {
+          stripe.set(i, 0);
+        }
+      }
+    }
+    count.reset();
+    sum.reset();
+    max.reset();
+  }
+
+  /** Returns the stripe of the current thread, allocating it on first use. */
+  private AtomicLongArray stripe() {
+    // spread consecutive thread ids over the stripes
+    int s = (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1);
+    AtomicLongArray stripe = counts.get(s);
+    if (stripe == null) {
+      counts.compareAndSet(s, null, new AtomicLongArray(BUCKETS));
+      stripe = counts.get(s);
+    }
+    return stripe;
+  }
+
+  private long countOf(int bucket) {
+    long c = 0;
+    for (int s = 0; s < STRIPES; s++) {
+      AtomicLongArray stripe = counts.get(s);
+      if (stripe != null) {
+        c += stripe.get(bucket);
+      }
+    }
+    return c;
+  }
+
+  private static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    // the leading SUB_BUCKET_BITS + 1 bits select the bucket within the power of two
+    return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+  }
+
+  private static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long mantissa = SUB_BUCKETS + bucket % SUB_BUCKETS;
+    return ((mantissa + 1) << shift) - 1;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("n=%d p50=%dus p95=%dus p99=%dus p999=%dus max=%dus",
+            getCount(), getPercentile(50) / 1000, getPercentile(95) / 1000,
+            getPercentile(99) / 1000, getPercentile(99.9) / 1000, getMax() / 1000);
+  }
+}
@@ -0,0 +1,25 @@
+package shop;
+
+import java.util.List;
+
+/**
+ * Receives the notifications of a channel from a {@link ShopNotificationListener}.
+ * Handlers are called on the listener's thread and should return quickly.
+ */
+public interface NotificationHandler {
+
+  /**
+   * Receives the payloads of the notifications on the channel that arrived together,
+   * in the order in which their transactions committed.
+   *
+   * @param payloads the payloads, never empty
+   */
+  void notifications(List<String> payloads);
+
+  /**
+   * Called after the listening connection has been lost and opened again.
+   * Notifications sent in between are lost, so state derived from them should be rebuilt.
+   */
+  default void reset() {
+  }
+}
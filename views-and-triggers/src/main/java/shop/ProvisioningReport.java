@@ -0,0 +1,55 @@
+package shop;
+
+/**
+ * This class summarizes a bulk provisioning of customer users.
+ */
+public final class ProvisioningReport {
+
+  private final int created;
+
+  private final int recreated;
+
+  private final int skipped;
+
+  /** Number of server-side batches, each of which ran in its own transaction. */
+  private final int chunks;
+
+  private final long elapsedMillis;
+
+  ProvisioningReport(int created, int recreated, int skipped, int chunks, long elapsedMillis) {
+    this.created = created;
+    this.recreated = recreated;
+    this.skipped = skipped;
+    this.chunks = chunks;
+    this.elapsedMillis = elapsedMillis;
+  }
+
+  /** Number of users that did not exist before. */
+  public int getCreated() {
+    return created;
+  }
+
+  /** Number of users that existed, but were dropped and created again. */
+  public int getRecreated() {
+    return recreated;
+  }
+
+  /** Number of users that already existed as members of role customer. */
+  public int getSkipped() {
+    return skipped;
+  }
+
+  public int getChunks() {
+    return chunks;
+  }
+
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("created=%d recreated=%d skipped=%d in %d chunks, %d ms",
+            created, recreated, skipped, chunks, elapsedMillis);
+  }
+}
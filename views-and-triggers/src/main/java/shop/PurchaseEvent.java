@@ -0,0 +1,90 @@
+package shop;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+/**
+ * This class represents a purchase that has been made or cancelled,
+ * as delivered by a {@link PurchaseFeed}.
+ */
+public final class PurchaseEvent {
+
+  /** The kinds of changes of a purchase. */
+  public enum Type {
+    PURCHASED, CANCELLED
+  }
+
+  private final Type type;
+
+  private final int id;
+
+  private final String customer;
+
+  private final LocalDate date;
+
+  private final String article;
+
+  private final int quantity;
+
+  /** The time of the change on the server in epoch milliseconds. */
+  private final long timestamp;
+
+  public PurchaseEvent(Type type, int id, String customer, LocalDate date, String article,
+                       int quantity, long timestamp) {
+    this.type = type;
+    this.id = id;
+    this.customer = customer;
+    this.date = date;
+    this.article = article;
+    this.quantity = quantity;
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * Reads the current row of a result set over the purchase events, which must not be
+   * the event of a truncation.
+   *
+   * @param res the result set, positioned on a row
+   * @return the event of that row
+   * @throws SQLException if a database access error occurs
+   */
+  static PurchaseEvent of(ResultSet res) throws SQLException {
+    return new PurchaseEvent("I".equals(res.getString(3)) ? Type.PURCHASED : Type.CANCELLED,
+            res.getInt(4), res.getString(7), res.getObject(5, LocalDate.class),
+            res.getString(8), res.getInt(6), res.getLong(2));
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  public String getCustomer() {
+    return customer;
+  }
+
+  public LocalDate getDate() {
+    return date;
+  }
+
+  public String getArticle() {
+    return article;
+  }
+
+  public int getQuantity() {
+    return quantity;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s #%d %s %s %d x %s", type, id, customer, date, quantity, article);
+  }
+}
@@ -0,0 +1,338 @@
+package shop;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class delivers the purchases and cancellations of customers to listeners as they
+ * commit, instead of letting every client poll {@link UserShopOperations#selectHistoryToday}.
+ * The trigger created by {@link AdminShopOperations#createTriggerNotifyPurchase} writes the
+ * changes into table purchase_event, which only the admin can read, and wakes up the feeds
+ * with an empty notification on channel "purchase_changed". A feed then reads the new events
+ * on a connection of its own, so all listeners of a client share one notification listener
+ * and one connection to read events with.
+ * Events are read in batches of finished transactions: an event is delivered once all
+ * transactions that started writing before it have ended, so that no event of a transaction
+ * that commits late is skipped. A long running transaction on the server therefore
+ * delays the events of the transactions that started after it.
+ * The connector must open connections of the admin.
+ */
+public class PurchaseFeed implements AutoCloseable {
+  /** The channel the trigger on table purchase notifies. */
+  public static final String CHANNEL = "purchase_changed";
+
+  private static final String SELECT_TRANSACTION_HORIZON_FILE = "selectTransactionHorizon";
+  private static final String SELECT_PURCHASE_EVENTS_FILE = "selectPurchaseEvents";
+  /** How often events are read while some are held back by running transactions. */
+  private static final long POLL_MILLIS = 100;
+  private static final long RECONNECT_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+  private final DbConnector connector;
+  private final ShopNotificationListener listener;
+  private final ConcurrentMap<String, List<PurchaseListener>> listeners =
+          new ConcurrentHashMap<>();
+  private final Semaphore wakeUps = new Semaphore(0);
+  private final Thread reader;
+  private volatile boolean closed;
+
+  /** The connection to read events with, used by the reader only after the constructor. */
+  private Connection conn;
+  /** All events of transactions below this id have been delivered, used by the reader only. */
+  private long horizon;
+
+  private final LongAdder received = new LongAdder();
+  private final LongAdder delivered = new LongAdder();
+  private final LongAdder unmatched = new LongAdder();
+  private final LongAdder reads = new LongAdder();
+  private final LongAdder failedReads = new LongAdder();
+  private final LatencyHistogram latencies = new LatencyHistogram();
+
+  private final NotificationHandler handler = new NotificationHandler() {
+    @Override
+    public void notifications(List<String> payloads) {
+      wakeUps.release();
+    }
+
+    @Override
+    public void reset() {
+      // the events are still in the table, only the wake-ups may have been lost
+      wakeUps.release();
+    }
+  };
+
+  /**
+   * Creates a feed without listeners that subscribes to the purchase changes.
+   *
+   * @param connector opens the connection to read events with, also after it has been lost
+   * @param listener the listener to receive the wake-ups from
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public PurchaseFeed(DbConnector connector, ShopNotificationListener listener)
+      throws SQLException, IOException {
+    this.connector = connector;
+    this.listener = listener;
+    // subscribe first, so that no change committed after the horizon is read is missed
+    listener.subscribe(CHANNEL, handler);
+    try {
+      conn = connector.getConnection();
+      horizon = readHorizon();
+    } catch (SQLException | IOException | RuntimeException e) {
+      listener.unsubscribe(CHANNEL, handler);
+      if (conn != null) {
+        conn.close();
+      }
+      throw e;
+    }
+    this.reader = new Thread(this::read, "shop-purchase-feed");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Registers a listener for the purchases and cancellations of a customer.
+   * It receives the changes of all transactions that commit afterwards.
+   *
+   * @param customer the customer
+   * @param l the listener
+   */
+  public void addListener(String customer, PurchaseListener l) {
+    listeners.computeIfAbsent(customer, c -> new CopyOnWriteArrayList<>()).add(l);
+  }
+
+  /**
+   * Removes a listener of a customer.
+   *
+   * @param customer the customer
+   * @param l the listener
+   */
+  public void removeListener(String customer, PurchaseListener l) {
+    listeners.computeIfPresent(customer, (c, subscribed) -> {
+      subscribed.remove(l);
+      return subscribed.isEmpty() ? null : subscribed;
+    });
+  }
+
+  /**
+   * Returns the times from the changes on the server to their delivery by this feed.
+   * As these are measured with the clocks of two machines, they are only as accurate
+   * as the clocks are synchronized.
+   *
+   * @return the live histogram
+   */
+  public LatencyHistogram getLatencies() {
+    return latencies;
+  }
+
+  public Statistics getStatistics() {
+    return new Statistics(received.sum(), delivered.sum(), unmatched.sum(), reads.sum(),
+            failedReads.sum(), listeners.size());
+  }
+
+  /**
+   * Stops delivering changes and closes the connection to read events with.
+   *
+   * @throws SQLException if the listener could not stop listening
+   */
+  @Override
+  public void close() throws SQLException {
+    closed = true;
+    reader.interrupt();
+    try {
+      reader.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      listener.unsubscribe(CHANNEL, handler);
+    } finally {
+      if (conn != null) {
+        conn.close();
+      }
+    }
+  }
+
+  private void read() {
+    boolean heldBack = false;
+    while (!closed) {
+      try {
+        if (heldBack) {
+          wakeUps.tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+          wakeUps.acquire();
+        }
+        wakeUps.drainPermits();
+        if (conn == null || conn.isClosed()) {
+          conn = connector.getConnection();
+        }
+        heldBack = readEvents();
+      } catch (InterruptedException e) {
+        return;
+      } catch (SQLException | IOException e) {
+        failedReads.increment();
+        closeConnection();
+        heldBack = true;
+        try {
+          Thread.sleep(RECONNECT_DELAY_MILLIS);
+        } catch (InterruptedException interrupted) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Delivers the events of the transactions that have ended since the last read.
+   *
+   * @return true, iff committed events are held back by transactions that are still running
+   */
+  private boolean readEvents() throws SQLException, IOException {
+    reads.increment();
+    long next = readHorizon();
+    List<PurchaseEvent> events = new ArrayList<>();
+    boolean truncated = false;
+    boolean heldBack = false;
+    try (PreparedStatement stmt = conn.prepareStatement(
+            ShopResource.getQuery(SELECT_PURCHASE_EVENTS_FILE))) {
+      stmt.setLong(1, horizon);
+      try (ResultSet res = stmt.executeQuery()) {
+        while (res.next()) {
+          if (res.getLong(1) >= next) {
+            heldBack = true;
+            break;
+          }
+          if ("T".equals(res.getString(3))) {
+            truncated = true;
+            events.clear();
+          } else {
+            events.add(PurchaseEvent.of(res));
+          }
+        }
+      }
+    }
+    horizon = next;
+    if (truncated) {
+      for (List<PurchaseListener> subscribed : listeners.values()) {
+        for (PurchaseListener l : subscribed) {
+          try {
+            l.reset();
+          } catch (RuntimeException e) {
+            // a failing listener must not keep the others from resetting
+          }
+        }
+      }
+    }
+    for (PurchaseEvent event : events) {
+      deliver(event);
+    }
+    return heldBack;
+  }
+
+  private long readHorizon() throws SQLException, IOException {
+    try (PreparedStatement stmt = conn.prepareStatement(
+            ShopResource.getQuery(SELECT_TRANSACTION_HORIZON_FILE));
+         ResultSet res = stmt.executeQuery()) {
+      res.next();
+      return res.getLong(1);
+    }
+  }
+
+  private void deliver(PurchaseEvent event) {
+    received.increment();
+    latencies.record(TimeUnit.MILLISECONDS.toNanos(
+            Math.max(0, System.currentTimeMillis() - event.getTimestamp())));
+    List<PurchaseListener> subscribed = listeners.get(event.getCustomer());
+    if (subscribed == null) {
+      unmatched.increment();
+      return;
+    }
+    for (PurchaseListener l : subscribed) {
+      delivered.increment();
+      try {
+        l.purchaseChanged(event);
+      } catch (RuntimeException e) {
+        // a failing listener must not keep the others from their events
+      }
+    }
+  }
+
+  private void closeConnection() {
+    try {
+      if (conn != null) {
+        conn.close();
+      }
+    } catch (SQLException ignored) {
+      // the connection is opened again by the next read
+    }
+    conn = null;
+  }
+
+  /**
+   * An immutable snapshot of the feed statistics.
+   */
+  public static final class Statistics {
+    private final long received;
+    private final long delivered;
+    private final long unmatched;
+    private final long reads;
+    private final long failedReads;
+    private final int customers;
+
+    private Statistics(long received, long delivered, long unmatched, long reads,
+                       long failedReads, int customers) {
+      this.received = received;
+      this.delivered = delivered;
+      this.unmatched = unmatched;
+      this.reads = reads;
+      this.failedReads = failedReads;
+      this.customers = customers;
+    }
+
+    /** Number of purchases and cancellations received. */
+    public long getReceived() {
+      return received;
+    }
+
+    /** Number of events passed to listeners, once per listener. */
+    public long getDelivered() {
+      return delivered;
+    }
+
+    /** Number of events of customers without listeners. */
+    public long getUnmatched() {
+      return unmatched;
+    }
+
+    /** Number of times new events have been read. */
+    public long getReads() {
+      return reads;
+    }
+
+    /** Number of reads that failed, e.g. because the connection was lost. */
+    public long getFailedReads() {
+      return failedReads;
+    }
+
+    /** Number of customers with listeners. */
+    public int getCustomers() {
+      return customers;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("received=%d delivered=%d unmatched=%d reads=%d failedReads=%d "
+              + "customers=%d", received, delivered, unmatched, reads, failedReads, customers);
+    }
+  }
+}
@@ -0,0 +1,38 @@
+package shop;
+
+/**
+ * This class represents one line of a basket: an article and the quantity to purchase.
+ */
+public final class PurchaseItem {
+
+  private final String article;
+
+  private final int quantity;
+
+  /**
+   * Creates a basket line.
+   *
+   * @param article name of the article to purchase
+   * @param quantity the quantity of this article to purchase
+   */
+  public PurchaseItem(String article, int quantity) {
+    if (article == null) {
+      throw new IllegalArgumentException();
+    }
+    this.article = article;
+    this.quantity = quantity;
+  }
+
+  public String getArticle() {
+    return article;
+  }
+
+  public int getQuantity() {
+    return quantity;
+  }
+
+  @Override
+  public String toString() {
+    return quantity + " x " + article;
+  }
+}
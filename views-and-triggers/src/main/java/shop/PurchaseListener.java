@@ -0,0 +1,22 @@
+package shop;
+
+/**
+ * Receives the purchases and cancellations of a customer from a {@link PurchaseFeed}.
+ * Listeners are called on the thread of the feed and should return quickly.
+ */
+public interface PurchaseListener {
+
+  /**
+   * Receives a purchase or cancellation, after its transaction has committed.
+   *
+   * @param event the purchase or cancellation
+   */
+  void purchaseChanged(PurchaseEvent event);
+
+  /**
+   * Called when table purchase has been truncated. State derived from events should be
+   * read again, e.g. with {@link UserShopOperations#selectHistoryToday}.
+   */
+  default void reset() {
+  }
+}
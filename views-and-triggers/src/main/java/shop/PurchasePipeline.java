@@ -0,0 +1,318 @@
+package shop;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class collects the purchases of many customers into batches, each of which runs in
+ * one transaction, so that many purchases share the cost of one commit.
+ * A batch is executed when it is full, or when its first purchase has waited for the
+ * maximum wait time. Every purchase still succeeds or fails on its own.
+ * The batches run on one connection of an admin, who purchases on behalf of the customers,
+ * so callers have to authenticate the customers themselves. The function the batches call
+ * is created by {@link AdminShopOperations#createFunctionNewPurchase}.
+ */
+public class PurchasePipeline implements AutoCloseable {
+  private static final String NEW_PURCHASES_FOR_FILE = "newPurchasesFor";
+  private static final long POLL_MILLIS = 100;
+
+  private final DbConnector connector;
+  private final int maxBatchSize;
+  private final long maxWaitNanos;
+  private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+  private final Thread worker;
+  /**
+   * Submitting holds the read lock and closing the write lock, so that no purchase is
+   * queued after the worker may have seen the pipeline closed and the queue empty.
+   */
+  private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+  private volatile boolean closed;
+
+  /** The connection of the admin and the prepared batch statement, used by the worker only. */
+  private Connection conn;
+  private PreparedStatement stmt;
+
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong purchases = new AtomicLong();
+  private final AtomicLong failedBatches = new AtomicLong();
+  private final AtomicLong maxObservedBatchSize = new AtomicLong();
+  private final LatencyHistogram latencies = new LatencyHistogram();
+
+  /**
+   * Starts a pipeline.
+   *
+   * @param connector opens the connection of the admin, also after it has been lost
+   * @param maxBatchSize the maximum number of purchases per transaction
+   * @param maxWaitMillis how long a purchase waits at most for others to join its batch
+   */
+  public PurchasePipeline(DbConnector connector, int maxBatchSize, long maxWaitMillis) {
+    if (maxBatchSize < 1 || maxWaitMillis < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.connector = connector;
+    this.maxBatchSize = maxBatchSize;
+    this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    this.worker = new Thread(this::work, "shop-purchase-pipeline");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Purchases an article for a customer, as {@link UserShopOperations#newPurchase} does.
+   *
+   * @param customer the customer
+   * @param article the article to purchase
+   * @param quantity the quantity of this article to purchase
+   * @return a future of true, iff the balance of the customer covered the purchase,
+   *     which fails with an SQLException e.g. for an unknown article
+   */
+  public CompletableFuture<Boolean> newPurchase(String customer, String article, int quantity) {
+    Request request = new Request(customer, article, quantity);
+    closeLock.readLock().lock();
+    try {
+      if (closed) {
+        request.completeExceptionally(new SQLException("purchase pipeline is closed"));
+      } else {
+        queue.add(request);
+      }
+    } finally {
+      closeLock.readLock().unlock();
+    }
+    return request;
+  }
+
+  /** Number of purchases waiting for their batch. */
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  /**
+   * Returns the time from submitting a purchase until its future completes.
+   *
+   * @return the live histogram
+   */
+  public LatencyHistogram getLatencies() {
+    return latencies;
+  }
+
+  public Statistics getStatistics() {
+    return new Statistics(batches.get(), purchases.get(), failedBatches.get(),
+            maxObservedBatchSize.get(), queue.size());
+  }
+
+  /**
+   * Stops accepting purchases, executes the ones already submitted and closes the connection.
+   *
+   * @throws SQLException if the connection could not be closed
+   */
+  @Override
+  public void close() throws SQLException {
+    closeLock.writeLock().lock();
+    try {
+      closed = true;
+    } finally {
+      closeLock.writeLock().unlock();
+    }
+    try {
+      worker.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // purchases left by a worker that was interrupted
+    List<Request> rejected = new ArrayList<>();
+    queue.drainTo(rejected);
+    fail(rejected, new SQLException("purchase pipeline is closed"));
+    if (conn != null) {
+      conn.close();
+    }
+  }
+
+  private void work() {
+    List<Request> batch = new ArrayList<>(maxBatchSize);
+    while (!closed || !queue.isEmpty()) {
+      try {
+        Request first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        long deadline = first.submitted + maxWaitNanos;
+        while (batch.size() < maxBatchSize) {
+          // take what is queued already, then wait for more until the deadline
+          Request next = queue.poll();
+          if (next == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+              break;
+            }
+            next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+              break;
+            }
+          }
+          batch.add(next);
+        }
+        execute(batch);
+      } catch (InterruptedException e) {
+        fail(batch, new SQLException("purchase pipeline interrupted", e));
+        return;
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  private void execute(List<Request> batch) {
+    String[] customers = new String[batch.size()];
+    String[] articles = new String[batch.size()];
+    Integer[] quantities = new Integer[batch.size()];
+    for (int i = 0; i < customers.length; i++) {
+      customers[i] = batch.get(i).customer;
+      articles[i] = batch.get(i).article;
+      quantities[i] = batch.get(i).quantity;
+    }
+    // the results are collected first, so that no future completes before the commit
+    boolean[] purchased = new boolean[batch.size()];
+    SQLException[] errors = new SQLException[batch.size()];
+    try {
+      if (conn == null || conn.isClosed()) {
+        conn = connector.getConnection();
+        stmt = conn.prepareStatement(ShopResource.getQuery(NEW_PURCHASES_FOR_FILE));
+      }
+      stmt.setArray(1, conn.createArrayOf("text", customers));
+      stmt.setArray(2, conn.createArrayOf("text", articles));
+      stmt.setArray(3, conn.createArrayOf("integer", quantities));
+      try (ResultSet res = stmt.executeQuery()) {
+        while (res.next()) {
+          int line = res.getInt(1) - 1;
+          purchased[line] = res.getBoolean(2);
+          if (res.getString(3) != null) {
+            errors[line] = new SQLException(res.getString(4), res.getString(3));
+          }
+        }
+      }
+    } catch (SQLException | IOException e) {
+      failedBatches.incrementAndGet();
+      closeBrokenConnection();
+      fail(batch, e instanceof SQLException ? (SQLException) e
+              : new SQLException("could not read the query file", e));
+      return;
+    }
+    batches.incrementAndGet();
+    purchases.addAndGet(batch.size());
+    maxObservedBatchSize.accumulateAndGet(batch.size(), Math::max);
+    for (int i = 0; i < batch.size(); i++) {
+      if (errors[i] != null) {
+        batch.get(i).finish(null, errors[i]);
+      } else {
+        batch.get(i).finish(purchased[i], null);
+      }
+    }
+  }
+
+  private void closeBrokenConnection() {
+    try {
+      if (conn != null && !conn.isValid(1)) {
+        conn.close();
+      }
+    } catch (SQLException ignored) {
+      // the connection is replaced by the next batch anyway
+    }
+  }
+
+  private void fail(List<Request> batch, SQLException error) {
+    for (Request request : batch) {
+      request.finish(null, error);
+    }
+  }
+
+  /**
+   * A purchase waiting for its batch, which is also the future of its outcome.
+   */
+  private final class Request extends CompletableFuture<Boolean> {
+    private final String customer;
+    private final String article;
+    private final int quantity;
+    private final long submitted = System.nanoTime();
+
+    private Request(String customer, String article, int quantity) {
+      this.customer = customer;
+      this.article = article;
+      this.quantity = quantity;
+    }
+
+    private void finish(Boolean purchased, SQLException error) {
+      latencies.record(System.nanoTime() - submitted);
+      if (error != null) {
+        completeExceptionally(error);
+      } else {
+        complete(purchased);
+      }
+    }
+  }
+
+  /**
+   * An immutable snapshot of the pipeline statistics.
+   */
+  public static final class Statistics {
+    private final long batches;
+    private final long purchases;
+    private final long failedBatches;
+    private final long maxBatchSize;
+    private final int queueDepth;
+
+    private Statistics(long batches, long purchases, long failedBatches, long maxBatchSize,
+                       int queueDepth) {
+      this.batches = batches;
+      this.purchases = purchases;
+      this.failedBatches = failedBatches;
+      this.maxBatchSize = maxBatchSize;
+      this.queueDepth = queueDepth;
+    }
+
+    /** Number of committed batches. */
+    public long getBatches() {
+      return batches;
+    }
+
+    /** Number of purchases in committed batches, including failed purchases. */
+    public long getPurchases() {
+      return purchases;
+    }
+
+    /** Number of batches that failed as a whole, e.g. because the connection was lost. */
+    public long getFailedBatches() {
+      return failedBatches;
+    }
+
+    public double getMeanBatchSize() {
+      return batches == 0 ? 0 : (double) purchases / batches;
+    }
+
+    public long getMaxBatchSize() {
+      return maxBatchSize;
+    }
+
+    public int getQueueDepth() {
+      return queueDepth;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("batches=%d purchases=%d mean=%.1f max=%d failed=%d queued=%d",
+              batches, purchases, getMeanBatchSize(), maxBatchSize, failedBatches, queueDepth);
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package shop;
+
+/**
+ * This class represents the outcome of purchasing one line of a basket.
+ */
+public final class PurchaseResult {
+
+  private final PurchaseItem item;
+
+  /** The price of the whole line, i.e. quantity times article price. */
+  private final int price;
+
+  /** Id of the new purchase, or 0 if the line has not been purchased. */
+  private final int purchaseId;
+
+  public PurchaseResult(PurchaseItem item, int price, int purchaseId) {
+    this.item = item;
+    this.price = price;
+    this.purchaseId = purchaseId;
+  }
+
+  public PurchaseItem getItem() {
+    return item;
+  }
+
+  public int getPrice() {
+    return price;
+  }
+
+  /**
+   * Returns the id of the purchase this line has been recorded as.
+   *
+   * @return the purchase id, or 0 if the line has not been purchased
+   */
+  public int getPurchaseId() {
+    return purchaseId;
+  }
+
+  /**
+   * Returns whether the line has been purchased.
+   *
+   * @return true, iff the balance has covered the basket this line belongs to
+   */
+  public boolean isPurchased() {
+    return purchaseId != 0;
+  }
+
+  @Override
+  public String toString() {
+    return item + (isPurchased() ? " purchased as #" + purchaseId : " not purchased")
+            + " for " + price;
+  }
+}
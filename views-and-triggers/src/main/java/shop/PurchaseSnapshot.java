@@ -0,0 +1,613 @@
+package shop;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyInputStream;
+
+/**
+ * This class keeps a copy of table purchase in memory for analytics, in primitive columns:
+ * ids, dates as epoch days, quantities, and customers and articles encoded as indexes into
+ * dictionaries of their names. A purchase takes 20 bytes, instead of several objects.
+ * Purchases are read with binary COPY, without decoding rows through JDBC, and the columns
+ * can be kept off the heap. Group-bys scan the columns in parallel on the common fork-join pool.
+ * Revenue is counted at the current prices of the articles, as in the "history" view.
+ * A refresh only reads purchases with ids above the highest loaded one. Cancelled purchases,
+ * and purchases with lower ids that commit after a refresh, are only noticed by a new snapshot.
+ * Queries may run concurrently with a refresh and see the purchases of the previous one.
+ * The connector must open connections of a user that can read tables purchase and article.
+ */
+public class PurchaseSnapshot {
+  private static final String SNAPSHOT_PURCHASES_FILE = "snapshotPurchases";
+  private static final String SELECT_ARTICLES_FILE = "selectArticles";
+  private static final int INITIAL_CAPACITY = 1 << 12;
+  /** Rows below which a scan is not split further. */
+  private static final int MIN_SPLIT_ROWS = 1 << 15;
+  /** The days from 1970-01-01 to 2000-01-01, the epoch of binary dates. */
+  private static final int POSTGRES_EPOCH_DAY = 10957;
+  private static final byte[] COPY_SIGNATURE =
+          "PGCOPY\n\377\r\n\0".getBytes(StandardCharsets.ISO_8859_1);
+
+  private final DbConnector connector;
+  private final boolean offHeap;
+
+  /** The loaded purchases, replaced as a whole by refreshes, which hold the lock. */
+  private volatile Columns columns;
+
+  /** The codes of the names in the dictionaries, only used by refreshes. */
+  private final Map<String, Integer> customerCodes = new HashMap<>();
+  private final Map<String, Integer> articleCodes = new HashMap<>();
+
+  private volatile long refreshes;
+  private volatile long lastRefreshRows;
+  private volatile long lastRefreshMillis;
+
+  /**
+   * Creates an empty snapshot, to be filled by {@link #refresh}.
+   *
+   * @param connector opens the connections to read purchases with
+   * @param offHeap true, to keep the columns in direct buffers outside the heap
+   */
+  public PurchaseSnapshot(DbConnector connector, boolean offHeap) {
+    this.connector = connector;
+    this.offHeap = offHeap;
+    this.columns = new Columns(offHeap);
+  }
+
+  /**
+   * Reads the purchases with ids above the highest loaded one, and the current prices.
+   * Purchases and prices are read in one transaction, so they are consistent.
+   *
+   * @return the number of purchases added
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public synchronized long refresh() throws SQLException, IOException {
+    long start = System.nanoTime();
+    Columns next = columns.copy();
+    try (Connection conn = connector.getConnection()) {
+      conn.setAutoCommit(false);
+      conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+      try {
+        readArticles(conn, next);
+        readPurchases(conn, next);
+        conn.commit();
+      } finally {
+        if (!conn.getAutoCommit()) {
+          conn.rollback();
+          conn.setAutoCommit(true);
+        }
+      }
+    } catch (SQLException | IOException | RuntimeException e) {
+      // forget the names added by the failed refresh, which the columns do not know
+      Columns current = columns;
+      customerCodes.values().removeIf(code -> code >= current.customerCount);
+      articleCodes.values().removeIf(code -> code >= current.articleCount);
+      throw e;
+    }
+    long added = next.size - columns.size;
+    columns = next;
+    refreshes++;
+    lastRefreshRows = added;
+    lastRefreshMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    return added;
+  }
+
+  private void readArticles(Connection conn, Columns next) throws SQLException, IOException {
+    try (Statement stmt = conn.createStatement();
+         ResultSet res = stmt.executeQuery(ShopResource.getQuery(SELECT_ARTICLES_FILE))) {
+      while (res.next()) {
+        int article = articleCode(next, res.getString(1));
+        next.prices[article] = res.getInt(2);
+      }
+    }
+  }
+
+  private void readPurchases(Connection conn, Columns next) throws SQLException, IOException {
+    // COPY takes no parameters, so the highest id becomes a literal
+    String query = ShopResource.getQuery(SNAPSHOT_PURCHASES_FILE)
+            .replace("?", Integer.toString(next.maxId));
+    byte[] text = new byte[64];
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+            new PGCopyInputStream(conn.unwrap(PGConnection.class),
+                    "COPY (" + query + ") TO STDOUT (FORMAT binary)"), 1 << 16))) {
+      readHeader(in);
+      for (short fields = in.readShort(); fields != -1; fields = in.readShort()) {
+        if (fields != 5) {
+          throw new IOException("unexpected number of columns " + fields);
+        }
+        int id = readInt(in);
+        int day = readInt(in) + POSTGRES_EPOCH_DAY;
+        int length = in.readInt();
+        if (length > text.length) {
+          text = new byte[Math.max(length, text.length * 2)];
+        }
+        in.readFully(text, 0, length);
+        int customer = customerCode(next, new String(text, 0, length, StandardCharsets.UTF_8));
+        length = in.readInt();
+        if (length > text.length) {
+          text = new byte[Math.max(length, text.length * 2)];
+        }
+        in.readFully(text, 0, length);
+        int article = articleCode(next, new String(text, 0, length, StandardCharsets.UTF_8));
+        next.append(id, day, customer, article, readInt(in));
+      }
+      // reading to the end completes the COPY, instead of cancelling it on close
+      if (in.read() != -1) {
+        throw new IOException("data after the end of the COPY stream");
+      }
+    }
+  }
+
+  private static void readHeader(DataInputStream in) throws IOException {
+    byte[] signature = new byte[COPY_SIGNATURE.length];
+    in.readFully(signature);
+    if (!Arrays.equals(signature, COPY_SIGNATURE)) {
+      throw new IOException("not a binary COPY stream");
+    }
+    in.readInt();
+    in.skipBytes(in.readInt());
+  }
+
+  private static int readInt(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length != 4) {
+      throw new IOException("unexpected field length " + length);
+    }
+    return in.readInt();
+  }
+
+  private int customerCode(Columns next, String name) {
+    Integer code = customerCodes.get(name);
+    if (code == null) {
+      code = next.customerCount;
+      next.customerNames = ensureCapacity(next.customerNames, code + 1);
+      next.customerNames[code] = name;
+      next.customerCount++;
+      customerCodes.put(name, code);
+    }
+    return code;
+  }
+
+  private int articleCode(Columns next, String name) {
+    Integer code = articleCodes.get(name);
+    if (code == null) {
+      code = next.articleCount;
+      next.articleNames = ensureCapacity(next.articleNames, code + 1);
+      next.prices = ensureCapacity(next.prices, code + 1);
+      next.articleNames[code] = name;
+      next.articleCount++;
+      articleCodes.put(name, code);
+    }
+    return code;
+  }
+
+  private static String[] ensureCapacity(String[] array, int length) {
+    return length <= array.length ? array
+            : Arrays.copyOf(array, Math.max(length, array.length * 2));
+  }
+
+  private static int[] ensureCapacity(int[] array, int length) {
+    return length <= array.length ? array
+            : Arrays.copyOf(array, Math.max(length, array.length * 2));
+  }
+
+  /**
+   * Returns the number of loaded purchases.
+   *
+   * @return the number of purchases
+   */
+  public int size() {
+    return columns.size;
+  }
+
+  /**
+   * Returns the highest loaded purchase id, from which the next refresh continues.
+   *
+   * @return the highest id, or 0 if no purchases have been loaded
+   */
+  public int getMaxId() {
+    return columns.maxId;
+  }
+
+  /**
+   * Returns the total revenue of all loaded purchases.
+   *
+   * @return the sum of quantity times current price
+   */
+  public long getRevenue() {
+    long revenue = 0;
+    for (long sum : sum(columns, Key.ARTICLE)) {
+      revenue += sum;
+    }
+    return revenue;
+  }
+
+  /**
+   * Returns the revenue per customer, in order of the first purchase of each customer.
+   *
+   * @return the revenue by customer name, of customers with purchases
+   */
+  public Map<String, Long> getRevenueByCustomer() {
+    Columns c = columns;
+    return byName(sum(c, Key.CUSTOMER), c.customerNames, c.customerCount);
+  }
+
+  /**
+   * Returns the revenue per article, in order of the first purchase of each article.
+   *
+   * @return the revenue by article name, of articles with purchases
+   */
+  public Map<String, Long> getRevenueByArticle() {
+    Columns c = columns;
+    return byName(sum(c, Key.ARTICLE), c.articleNames, c.articleCount);
+  }
+
+  /**
+   * Returns the revenue per day.
+   *
+   * @return the revenue by date, of days with purchases
+   */
+  public SortedMap<LocalDate, Long> getRevenueByDay() {
+    Columns c = columns;
+    long[] sums = sum(c, Key.DAY);
+    SortedMap<LocalDate, Long> revenue = new TreeMap<>();
+    for (int i = 0; i < sums.length; i++) {
+      if (sums[i] != 0) {
+        revenue.put(LocalDate.ofEpochDay(c.minDay + i), sums[i]);
+      }
+    }
+    return revenue;
+  }
+
+  private static Map<String, Long> byName(long[] sums, String[] names, int count) {
+    Map<String, Long> revenue = new LinkedHashMap<>();
+    for (int i = 0; i < count; i++) {
+      if (sums[i] != 0) {
+        revenue.put(names[i], sums[i]);
+      }
+    }
+    return revenue;
+  }
+
+  private static long[] sum(Columns c, Key key) {
+    if (c.size == 0) {
+      return new long[0];
+    }
+    // a few tasks per worker, as every task allocates sums for all keys
+    int splitRows = Math.max(MIN_SPLIT_ROWS,
+            c.size / (ForkJoinPool.getCommonPoolParallelism() * 4) + 1);
+    return ForkJoinPool.commonPool().invoke(new SumTask(c, key, splitRows, 0, c.size));
+  }
+
+  /**
+   * Returns statistics of the snapshot and its last refresh.
+   *
+   * @return the current statistics
+   */
+  public Statistics getStatistics() {
+    Columns c = columns;
+    return new Statistics(c.size, c.customerCount, c.articleCount, c.getColumnBytes(), offHeap,
+            refreshes, lastRefreshRows, lastRefreshMillis);
+  }
+
+  /** The columns a group-by sums up revenue by. */
+  private enum Key {
+    CUSTOMER, ARTICLE, DAY
+  }
+
+  /**
+   * Sums up the revenue of a range of rows by key, splitting large ranges in halves.
+   */
+  private static final class SumTask extends RecursiveTask<long[]> {
+    private static final long serialVersionUID = 1L;
+
+    private final Columns c;
+    private final Key key;
+    private final int splitRows;
+    private final int from;
+    private final int to;
+
+    private SumTask(Columns c, Key key, int splitRows, int from, int to) {
+      this.c = c;
+      this.key = key;
+      this.splitRows = splitRows;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected long[] compute() {
+      if (to - from > splitRows) {
+        int middle = (from + to) >>> 1;
+        SumTask left = new SumTask(c, key, splitRows, from, middle);
+        left.fork();
+        long[] sums = new SumTask(c, key, splitRows, middle, to).compute();
+        long[] leftSums = left.join();
+        for (int i = 0; i < sums.length; i++) {
+          sums[i] += leftSums[i];
+        }
+        return sums;
+      }
+      IntColumn quantities = c.quantities;
+      IntColumn articles = c.articles;
+      int[] prices = c.prices;
+      switch (key) {
+        case CUSTOMER: {
+          long[] sums = new long[c.customerCount];
+          IntColumn customers = c.customers;
+          for (int i = from; i < to; i++) {
+            sums[customers.get(i)] += (long) quantities.get(i) * prices[articles.get(i)];
+          }
+          return sums;
+        }
+        case ARTICLE: {
+          long[] sums = new long[c.articleCount];
+          for (int i = from; i < to; i++) {
+            int article = articles.get(i);
+            sums[article] += (long) quantities.get(i) * prices[article];
+          }
+          return sums;
+        }
+        default: {
+          long[] sums = new long[c.maxDay - c.minDay + 1];
+          IntColumn days = c.days;
+          for (int i = from; i < to; i++) {
+            sums[days.get(i) - c.minDay] += (long) quantities.get(i) * prices[articles.get(i)];
+          }
+          return sums;
+        }
+      }
+    }
+  }
+
+  /**
+   * The loaded purchases and dictionaries. A refresh appends to a copy, sharing the columns
+   * as long as they have room, as queries on the previous copy never read beyond its size.
+   */
+  private static final class Columns {
+    private final boolean offHeap;
+    private IntColumn ids;
+    private IntColumn days;
+    private IntColumn customers;
+    private IntColumn articles;
+    private IntColumn quantities;
+    private int size;
+    private int maxId;
+    private int minDay = Integer.MAX_VALUE;
+    private int maxDay = Integer.MIN_VALUE;
+    private String[] customerNames = new String[0];
+    private int customerCount;
+    private String[] articleNames = new String[0];
+    /** The current price by article code. */
+    private int[] prices = new int[0];
+    private int articleCount;
+
+    private Columns(boolean offHeap) {
+      this.offHeap = offHeap;
+      this.ids = IntColumn.allocate(offHeap, INITIAL_CAPACITY);
+      this.days = IntColumn.allocate(offHeap, INITIAL_CAPACITY);
+      this.customers = IntColumn.allocate(offHeap, INITIAL_CAPACITY);
+      this.articles = IntColumn.allocate(offHeap, INITIAL_CAPACITY);
+      this.quantities = IntColumn.allocate(offHeap, INITIAL_CAPACITY);
+    }
+
+    private Columns copy() {
+      Columns copy = new Columns(this);
+      // prices may change, so the copy must not write to the array of this one
+      copy.prices = prices.clone();
+      return copy;
+    }
+
+    private Columns(Columns other) {
+      this.offHeap = other.offHeap;
+      this.ids = other.ids;
+      this.days = other.days;
+      this.customers = other.customers;
+      this.articles = other.articles;
+      this.quantities = other.quantities;
+      this.size = other.size;
+      this.maxId = other.maxId;
+      this.minDay = other.minDay;
+      this.maxDay = other.maxDay;
+      this.customerNames = other.customerNames;
+      this.customerCount = other.customerCount;
+      this.articleNames = other.articleNames;
+      this.articleCount = other.articleCount;
+    }
+
+    private void append(int id, int day, int customer, int article, int quantity) {
+      if (size == ids.capacity()) {
+        int capacity = size * 2;
+        ids = ids.grow(capacity);
+        days = days.grow(capacity);
+        customers = customers.grow(capacity);
+        articles = articles.grow(capacity);
+        quantities = quantities.grow(capacity);
+      }
+      ids.set(size, id);
+      days.set(size, day);
+      customers.set(size, customer);
+      articles.set(size, article);
+      quantities.set(size, quantity);
+      size++;
+      maxId = Math.max(maxId, id);
+      minDay = Math.min(minDay, day);
+      maxDay = Math.max(maxDay, day);
+    }
+
+    private long getColumnBytes() {
+      return 5L * Integer.BYTES * ids.capacity();
+    }
+  }
+
+  /**
+   * A fixed-size column of ints, on or off the heap.
+   */
+  private abstract static class IntColumn {
+    static IntColumn allocate(boolean offHeap, int capacity) {
+      return offHeap ? new BufferColumn(capacity) : new ArrayColumn(capacity);
+    }
+
+    abstract int capacity();
+
+    abstract int get(int index);
+
+    abstract void set(int index, int value);
+
+    /** Returns a column of the same kind with a larger capacity and the same values. */
+    abstract IntColumn grow(int capacity);
+  }
+
+  private static final class ArrayColumn extends IntColumn {
+    private final int[] values;
+
+    private ArrayColumn(int capacity) {
+      this.values = new int[capacity];
+    }
+
+    @Override
+    int capacity() {
+      return values.length;
+    }
+
+    @Override
+    int get(int index) {
+      return values[index];
+    }
+
+    @Override
+    void set(int index, int value) {
+      values[index] = value;
+    }
+
+    @Override
+    IntColumn grow(int capacity) {
+      ArrayColumn grown = new ArrayColumn(capacity);
+      System.arraycopy(values, 0, grown.values, 0, values.length);
+      return grown;
+    }
+  }
+
+  private static final class BufferColumn extends IntColumn {
+    private final IntBuffer values;
+
+    private BufferColumn(int capacity) {
+      this.values = ByteBuffer.allocateDirect(capacity * Integer.BYTES)
+              .order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    @Override
+    int capacity() {
+      return values.capacity();
+    }
+
+    @Override
+    int get(int index) {
+      return values.get(index);
+    }
+
+    @Override
+    void set(int index, int value) {
+      values.put(index, value);
+    }
+
+    @Override
+    IntColumn grow(int capacity) {
+      BufferColumn grown = new BufferColumn(capacity);
+      IntBuffer source = values.duplicate();
+      source.clear();
+      grown.values.put(source);
+      return grown;
+    }
+  }
+
+  /**
+   * An immutable snapshot of the snapshot statistics.
+   */
+  public static final class Statistics {
+    private final int rows;
+    private final int customers;
+    private final int articles;
+    private final long columnBytes;
+    private final boolean offHeap;
+    private final long refreshes;
+    private final long lastRefreshRows;
+    private final long lastRefreshMillis;
+
+    private Statistics(int rows, int customers, int articles, long columnBytes, boolean offHeap,
+                       long refreshes, long lastRefreshRows, long lastRefreshMillis) {
+      this.rows = rows;
+      this.customers = customers;
+      this.articles = articles;
+      this.columnBytes = columnBytes;
+      this.offHeap = offHeap;
+      this.refreshes = refreshes;
+      this.lastRefreshRows = lastRefreshRows;
+      this.lastRefreshMillis = lastRefreshMillis;
+    }
+
+    public int getRows() {
+      return rows;
+    }
+
+    /** Number of distinct customers in the dictionary. */
+    public int getCustomers() {
+      return customers;
+    }
+
+    /** Number of distinct articles in the dictionary. */
+    public int getArticles() {
+      return articles;
+    }
+
+    /** Bytes allocated for the columns, including room for further purchases. */
+    public long getColumnBytes() {
+      return columnBytes;
+    }
+
+    public boolean isOffHeap() {
+      return offHeap;
+    }
+
+    public long getRefreshes() {
+      return refreshes;
+    }
+
+    /** Number of purchases added by the last refresh. */
+    public long getLastRefreshRows() {
+      return lastRefreshRows;
+    }
+
+    public long getLastRefreshMillis() {
+      return lastRefreshMillis;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("rows=%d customers=%d articles=%d columns=%d bytes%s "
+                      + "refreshes=%d last=%d rows in %d ms", rows, customers, articles,
+              columnBytes, offHeap ? " off-heap" : "", refreshes, lastRefreshRows,
+              lastRefreshMillis);
+    }
+  }
+}
@@ -0,0 +1,194 @@
+package shop;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class counts the executions, errors and rows of the queries of shop operations
+ * by query name, and records their latencies. All counters are striped, so that threads
+ * executing the same query do not contend. While the metrics are disabled, which is the
+ * default, executions are not measured at all. The shared instance is used by all shop
+ * operations unless they are given another one, and is enabled from the start if the
+ * system property shop.metrics is true.
+ */
+public final class QueryMetrics implements QueryMetricsMXBean {
+  private static final QueryMetrics SHARED = new QueryMetrics(Boolean.getBoolean("shop.metrics"));
+
+  private final ConcurrentMap<String, Query> queries = new ConcurrentHashMap<>();
+  private volatile boolean enabled;
+
+  /**
+   * Creates metrics.
+   *
+   * @param enabled whether executions are measured from the start
+   */
+  public QueryMetrics(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Returns the metrics used by shop operations by default.
+   *
+   * @return the shared metrics
+   */
+  public static QueryMetrics getShared() {
+    return SHARED;
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  @Override
+  public List<QueryStatistics> getQueries() {
+    return new ArrayList<>(snapshot().values());
+  }
+
+  /**
+   * Returns the statistics of every query that has been executed since the last reset.
+   *
+   * @return the statistics by query name, sorted by name
+   */
+  public Map<String, QueryStatistics> snapshot() {
+    Map<String, QueryStatistics> snapshot = new TreeMap<>();
+    for (Map.Entry<String, Query> query : queries.entrySet()) {
+      snapshot.put(query.getKey(), query.getValue().snapshot(query.getKey()));
+    }
+    return snapshot;
+  }
+
+  @Override
+  public void reset() {
+    queries.clear();
+  }
+
+  /**
+   * Registers these metrics with the platform MBean server, as shop:type=QueryMetrics
+   * with the given name.
+   *
+   * @param name distinguishes several registered instances, e.g. "default"
+   * @return the name the metrics have been registered as
+   * @throws JMException if the metrics could not be registered, e.g. as the name is taken
+   */
+  public ObjectName register(String name) throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName objectName = new ObjectName("shop:type=QueryMetrics,name="
+            + ObjectName.quote(name));
+    server.registerMBean(this, objectName);
+    return objectName;
+  }
+
+  /**
+   * Records an execution.
+   *
+   * @param name the name of the query
+   * @param startNanos when the query was sent, as of System.nanoTime
+   * @param failed whether the execution failed
+   */
+  void record(String name, long startNanos, boolean failed) {
+    Query query = query(name);
+    query.calls.increment();
+    if (failed) {
+      query.errors.increment();
+    }
+    query.latencies.record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Wraps a result set so that its rows are counted when it is closed.
+   *
+   * @param name the name of the query
+   * @param res the result set
+   * @return the counting result set
+   */
+  ResultSet countRows(String name, ResultSet res) {
+    return (ResultSet) Proxy.newProxyInstance(QueryMetrics.class.getClassLoader(),
+            new Class<?>[] {ResultSet.class}, new RowCounter(res, query(name)));
+  }
+
+  private Query query(String name) {
+    Query query = queries.get(name);
+    return query != null ? query : queries.computeIfAbsent(name, n -> new Query());
+  }
+
+  /**
+   * Counts the rows of a result set and adds them to its query when the result set is closed.
+   */
+  private static final class RowCounter implements InvocationHandler {
+    private final ResultSet res;
+    private final Query query;
+    private long rows;
+    private boolean closed;
+
+    private RowCounter(ResultSet res, Query query) {
+      this.res = res;
+      this.query = query;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      Object result;
+      try {
+        result = method.invoke(res, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+      switch (method.getName()) {
+        case "next":
+          if (Boolean.TRUE.equals(result)) {
+            rows++;
+          }
+          break;
+        case "close":
+          if (!closed) {
+            closed = true;
+            query.rows.add(rows);
+          }
+          break;
+        default:
+          break;
+      }
+      return result;
+    }
+  }
+
+  /** The counters of one query. */
+  private static final class Query {
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    private QueryStatistics snapshot(String name) {
+      return new QueryStatistics(name, calls.sum(), errors.sum(), rows.sum(),
+              latencies.getMean() / 1000, micros(latencies.getPercentile(50)),
+              micros(latencies.getPercentile(95)), micros(latencies.getPercentile(99)),
+              micros(latencies.getPercentile(99.9)), micros(latencies.getMax()));
+    }
+
+    private static long micros(long nanos) {
+      return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+  }
+}
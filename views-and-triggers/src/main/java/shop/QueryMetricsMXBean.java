@@ -0,0 +1,23 @@
+package shop;
+
+import java.util.List;
+
+/**
+ * The management interface of {@link QueryMetrics}, e.g. for JConsole or VisualVM.
+ */
+public interface QueryMetricsMXBean {
+
+  boolean isEnabled();
+
+  void setEnabled(boolean enabled);
+
+  /**
+   * Returns the statistics of every query that has been executed since the last reset.
+   *
+   * @return the statistics, sorted by query name
+   */
+  List<QueryStatistics> getQueries();
+
+  /** Forgets all statistics. */
+  void reset();
+}
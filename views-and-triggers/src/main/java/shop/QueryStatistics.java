@@ -0,0 +1,97 @@
+package shop;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * This class is a snapshot of the statistics of one named query, see {@link QueryMetrics}.
+ */
+public final class QueryStatistics {
+
+  private final String name;
+
+  /** Number of executions, including failed ones. */
+  private final long calls;
+
+  /** Number of executions that failed with an exception. */
+  private final long errors;
+
+  /** Number of rows read from the results, counted when a result set is closed. */
+  private final long rows;
+
+  private final double meanMicros;
+
+  private final long p50Micros;
+
+  private final long p95Micros;
+
+  private final long p99Micros;
+
+  private final long p999Micros;
+
+  private final long maxMicros;
+
+  @ConstructorProperties({"name", "calls", "errors", "rows", "meanMicros", "p50Micros",
+      "p95Micros", "p99Micros", "p999Micros", "maxMicros"})
+  public QueryStatistics(String name, long calls, long errors, long rows, double meanMicros,
+                         long p50Micros, long p95Micros, long p99Micros, long p999Micros,
+                         long maxMicros) {
+    this.name = name;
+    this.calls = calls;
+    this.errors = errors;
+    this.rows = rows;
+    this.meanMicros = meanMicros;
+    this.p50Micros = p50Micros;
+    this.p95Micros = p95Micros;
+    this.p99Micros = p99Micros;
+    this.p999Micros = p999Micros;
+    this.maxMicros = maxMicros;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getCalls() {
+    return calls;
+  }
+
+  public long getErrors() {
+    return errors;
+  }
+
+  public long getRows() {
+    return rows;
+  }
+
+  /** Mean time from sending a query until its first result arrived. */
+  public double getMeanMicros() {
+    return meanMicros;
+  }
+
+  public long getP50Micros() {
+    return p50Micros;
+  }
+
+  public long getP95Micros() {
+    return p95Micros;
+  }
+
+  public long getP99Micros() {
+    return p99Micros;
+  }
+
+  public long getP999Micros() {
+    return p999Micros;
+  }
+
+  public long getMaxMicros() {
+    return maxMicros;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: calls=%d errors=%d rows=%d mean=%.0fus p50=%dus p95=%dus "
+                    + "p99=%dus p999=%dus max=%dus", name, calls, errors, rows, meanMicros,
+            p50Micros, p95Micros, p99Micros, p999Micros, maxMicros);
+  }
+}
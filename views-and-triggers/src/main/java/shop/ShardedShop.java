@@ -0,0 +1,371 @@
+package shop;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.postgresql.PGConnection;
+
+/**
+ * This class spreads the customers of a shop over several databases, the shards,
+ * so that purchases are not bound by the throughput of one server.
+ * Each customer belongs to one shard, chosen by the hash of the name, which holds
+ * the customer and all of its purchases; table article is replicated to every shard.
+ * Users are routed to the shard of their name, and admin reads are run on all shards
+ * in parallel and merged. Changes of articles have to be made on every shard.
+ * Shards may be databases of one server or of several servers with the same users,
+ * as roles are shared by all databases of a server and only created once.
+ */
+public class ShardedShop implements AutoCloseable {
+  private static final int PROVISIONING_CHUNK_SIZE = 1000;
+
+  /** A query of an admin on one shard. */
+  public interface ShardQuery<T> {
+    T apply(AdminShopOperations op) throws SQLException, IOException;
+  }
+
+  private final String baseUrl;
+  private final String[] databases;
+  private final String admin;
+  private final String adminPassword;
+  private final ShopConnectionPool[] pools;
+  private final ExecutorService executor;
+
+  /**
+   * Describes a sharded shop. The databases are named by the prefix and the number of the
+   * shard, e.g. shop_0 and shop_1, and only created by {@link #create}.
+   *
+   * @param baseUrl the URL of the server without a database, e.g. jdbc:postgresql://localhost/
+   * @param databasePrefix the prefix of the names of the shard databases
+   * @param shards the number of shards
+   * @param admin the user that owns the shop databases
+   * @param adminPassword the password of the admin
+   */
+  public ShardedShop(String baseUrl, String databasePrefix, int shards, String admin,
+                     String adminPassword) {
+    if (shards < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.baseUrl = baseUrl;
+    this.databases = new String[shards];
+    this.pools = new ShopConnectionPool[shards];
+    for (int i = 0; i < shards; i++) {
+      databases[i] = databasePrefix + "_" + i;
+      pools[i] = new ShopConnectionPool(baseUrl + databases[i]);
+    }
+    this.admin = admin;
+    this.adminPassword = adminPassword;
+    this.executor = Executors.newFixedThreadPool(shards, r -> {
+      Thread thread = new Thread(r, "shop-shard");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public int getShards() {
+    return databases.length;
+  }
+
+  public String getDatabase(int shard) {
+    return databases[shard];
+  }
+
+  /**
+   * Returns the shard a customer belongs to.
+   *
+   * @param customer the name of the customer
+   * @return the number of the shard
+   */
+  public int shardOf(String customer) {
+    return Math.floorMod(customer.hashCode(), databases.length);
+  }
+
+  /**
+   * Creates all shards from the bundled data, as {@link #create(BulkLoadSource,
+   * BulkLoadSource, BulkLoadSource)} does.
+   *
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query or data files could not be read
+   */
+  public void create() throws SQLException, IOException {
+    create(BulkLoadSource.bundled("customer"), BulkLoadSource.bundled("article"),
+            BulkLoadSource.bundled("purchase"));
+  }
+
+  /**
+   * Creates the shard databases, after deleting existing databases with the same names,
+   * and sets them up like a single shop database. Every shard is loaded in parallel
+   * with its customers and their purchases, and all articles. Users are provisioned
+   * for the customers of each shard in turn. Finally, the purchase ids of the shards
+   * continue from the highest loaded id in steps of the number of shards,
+   * with a different offset per shard, so that new ids are unique across shards.
+   * No connections to the shards may be open, as their databases are dropped.
+   *
+   * @param customers the source of the customer table, in text format
+   * @param articles the source of the article table
+   * @param purchases the source of the purchase table, in text format
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files or the sources could not be read
+   */
+  public void create(BulkLoadSource customers, BulkLoadSource articles,
+                     BulkLoadSource purchases) throws SQLException, IOException {
+    try (AdminShopOperations op = new AdminShopOperationsImpl(baseUrl, admin, adminPassword)) {
+      for (String database : databases) {
+        op.createShopDatabase(database);
+      }
+    }
+    runOnAllShards(shard -> {
+      String url = baseUrl + databases[shard];
+      try (AdminShopOperations op = new AdminShopOperationsImpl(url, admin, adminPassword)) {
+        op.createTables();
+        op.populateTables(new BulkLoader(
+                () -> DriverManager.getConnection(url, admin, adminPassword),
+                customers.filter(0, name -> shardOf(name) == shard), articles,
+                purchases.filter(1, name -> shardOf(name) == shard)));
+      }
+      return null;
+    });
+    // roles belong to the server, so users are created one shard after the other
+    for (int shard = 0; shard < databases.length; shard++) {
+      try (AdminShopOperations op = adminOperations(shard)) {
+        op.createUsers(PROVISIONING_CHUNK_SIZE);
+        op.createViewHistory();
+        op.createFunctionNewPurchase();
+        op.createRuleDeleteHistory();
+      }
+    }
+    int maxId = 0;
+    for (int id : fanOut(op -> {
+      try (ResultSet res = op.selectPurchaseId()) {
+        int max = 0;
+        while (res.next()) {
+          max = Math.max(max, res.getInt(1));
+        }
+        return max;
+      }
+    })) {
+      maxId = Math.max(maxId, id);
+    }
+    for (int shard = 0; shard < databases.length; shard++) {
+      try (Connection conn = pools[shard].getConnection(admin, adminPassword);
+           Statement stmt = conn.createStatement()) {
+        stmt.execute(String.format("ALTER TABLE purchase ALTER COLUMN id SET INCREMENT BY %d "
+                + "RESTART WITH %d", databases.length, maxId + 1 + shard));
+      }
+    }
+  }
+
+  /**
+   * Returns the operations of a user on the shard of the user, borrowing a pooled connection.
+   *
+   * @param user the user, who is also the customer
+   * @param password the password of the user
+   * @return the operations, which should be closed to return the connection
+   * @throws SQLException if no connection could be borrowed
+   */
+  public UserShopOperations userOperations(String user, String password) throws SQLException {
+    return new UserShopOperationsImpl(pools[shardOf(user)], user, password);
+  }
+
+  /**
+   * Returns the operations of the admin on one shard, borrowing a pooled connection.
+   *
+   * @param shard the number of the shard
+   * @return the operations, which should be closed to return the connection
+   * @throws SQLException if no connection could be borrowed
+   */
+  public AdminShopOperations adminOperations(int shard) throws SQLException {
+    return new AdminShopOperationsImpl(pools[shard], admin, adminPassword);
+  }
+
+  /**
+   * Runs a query of the admin on all shards in parallel.
+   * Result sets must be read within the query, as its connection is returned afterwards.
+   *
+   * @param query the query
+   * @param <T> the type of the result
+   * @return the results in the order of the shards
+   * @throws SQLException if a database access error occurs on any shard
+   * @throws IOException if the required query files could not be read
+   */
+  public <T> List<T> fanOut(ShardQuery<T> query) throws SQLException, IOException {
+    return runOnAllShards(shard -> {
+      try (AdminShopOperations op = adminOperations(shard)) {
+        return query.apply(op);
+      }
+    });
+  }
+
+  /**
+   * Selects the names of all customers from all shards.
+   *
+   * @return the names, shard by shard
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public List<String> selectCustomerNames() throws SQLException, IOException {
+    List<String> names = new ArrayList<>();
+    for (List<String> shard : fanOut(op -> strings(op.selectCustomerName()))) {
+      names.addAll(shard);
+    }
+    return names;
+  }
+
+  /**
+   * Selects the names of all articles, from the first shard, as all shards hold all articles.
+   *
+   * @return the names
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public List<String> selectArticleNames() throws SQLException, IOException {
+    try (AdminShopOperations op = adminOperations(0)) {
+      return strings(op.selectArticleName());
+    }
+  }
+
+  /**
+   * Selects the ids of all purchases from all shards.
+   *
+   * @return the ids in ascending order
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public List<Integer> selectPurchaseIds() throws SQLException, IOException {
+    List<Integer> ids = new ArrayList<>();
+    for (List<Integer> shard : fanOut(op -> {
+      List<Integer> shardIds = new ArrayList<>();
+      try (ResultSet res = op.selectPurchaseId()) {
+        while (res.next()) {
+          shardIds.add(res.getInt(1));
+        }
+      }
+      return shardIds;
+    })) {
+      ids.addAll(shard);
+    }
+    Collections.sort(ids);
+    return ids;
+  }
+
+  /**
+   * Returns the balances of many users, asking each shard only for its own customers.
+   *
+   * @param ofUsers the users
+   * @return the balances by user, without users that do not exist
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public Map<String, Integer> getBalances(Collection<String> ofUsers)
+      throws SQLException, IOException {
+    List<List<String>> byShard = new ArrayList<>();
+    for (int i = 0; i < databases.length; i++) {
+      byShard.add(new ArrayList<>());
+    }
+    for (String user : ofUsers) {
+      byShard.get(shardOf(user)).add(user);
+    }
+    List<Map<String, Integer>> shardBalances = runOnAllShards(shard -> {
+      if (byShard.get(shard).isEmpty()) {
+        return Collections.emptyMap();
+      }
+      try (AdminShopOperations op = adminOperations(shard)) {
+        return op.getBalances(byShard.get(shard));
+      }
+    });
+    Map<String, Integer> balances = new LinkedHashMap<>();
+    for (String user : ofUsers) {
+      Integer balance = shardBalances.get(shardOf(user)).get(user);
+      if (balance != null) {
+        balances.put(user, balance);
+      }
+    }
+    return balances;
+  }
+
+  private static List<String> strings(ResultSet res) throws SQLException {
+    List<String> values = new ArrayList<>();
+    try (ResultSet r = res) {
+      while (r.next()) {
+        values.add(r.getString(1));
+      }
+    }
+    return values;
+  }
+
+  /** A task on one shard. */
+  private interface ShardTask<T> {
+    T run(int shard) throws SQLException, IOException;
+  }
+
+  private <T> List<T> runOnAllShards(ShardTask<T> task) throws SQLException, IOException {
+    List<Future<T>> futures = new ArrayList<>();
+    for (int i = 0; i < databases.length; i++) {
+      int shard = i;
+      futures.add(executor.submit((Callable<T>) () -> task.run(shard)));
+    }
+    List<T> results = new ArrayList<>();
+    try {
+      for (Future<T> future : futures) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("interrupted while waiting for the shards", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SQLException) {
+        throw (SQLException) cause;
+      }
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new SQLException("query on a shard failed", cause);
+    } finally {
+      for (Future<T> future : futures) {
+        future.cancel(true);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Closes this instance and drops the shard databases.
+   *
+   * @throws SQLException if a database access error occurs
+   */
+  public void drop() throws SQLException {
+    close();
+    try (Connection conn = DriverManager.getConnection(baseUrl, admin, adminPassword);
+         Statement stmt = conn.createStatement()) {
+      for (String database : databases) {
+        stmt.execute("DROP DATABASE IF EXISTS "
+                + conn.unwrap(PGConnection.class).escapeIdentifier(database));
+      }
+    }
+  }
+
+  /**
+   * Closes the connection pools of the shards.
+   */
+  @Override
+  public void close() {
+    executor.shutdownNow();
+    for (ShopConnectionPool pool : pools) {
+      pool.close();
+    }
+  }
+}
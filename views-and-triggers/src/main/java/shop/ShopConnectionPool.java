@@ -0,0 +1,500 @@
+package shop;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps physical database connections open between shop operation sessions.
+ * Connections are pooled per database user, because the user of a connection
+ * (its session_user) decides which purchase history it sees and whose balance it debits.
+ * Each per-user sub-pool is bounded, idle connections are evicted after a timeout,
+ * and connections are validated before they are handed out again.
+ * Closing a borrowed connection returns it to its sub-pool, after resetting the session
+ * state the borrower may have changed, except for the prepared statements.
+ */
+public class ShopConnectionPool implements AutoCloseable {
+  private static final int DEFAULT_MAX_PER_USER = 8;
+  private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+  private static final long DEFAULT_BORROW_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+  private static final String RESET_SESSION_FILE = "resetSession";
+
+  private final String url;
+  private final int maxPerUser;
+  private final long idleTimeoutMillis;
+  private final long borrowTimeoutMillis;
+  private final ConcurrentMap<String, UserPool> pools = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService evictor;
+  private volatile boolean closed;
+
+  private final AtomicLong created = new AtomicLong();
+  private final AtomicLong borrowed = new AtomicLong();
+  private final AtomicLong reused = new AtomicLong();
+  private final AtomicLong evicted = new AtomicLong();
+  private final AtomicLong validationFailures = new AtomicLong();
+  private final AtomicLong borrowTimeouts = new AtomicLong();
+
+  public ShopConnectionPool(String url) {
+    this(url, DEFAULT_MAX_PER_USER, DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_BORROW_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Creates a pool for a database URL.
+   *
+   * @param url the JDBC URL of the shop database
+   * @param maxPerUser the maximum number of physical connections per database user
+   * @param idleTimeoutMillis how long a connection may stay idle before it is closed,
+   *     or 0 to keep idle connections forever
+   * @param borrowTimeoutMillis how long to wait for a connection if a sub-pool is exhausted
+   */
+  public ShopConnectionPool(String url, int maxPerUser, long idleTimeoutMillis,
+                            long borrowTimeoutMillis) {
+    if (maxPerUser < 1 || idleTimeoutMillis < 0 || borrowTimeoutMillis < 0) {
+      throw new IllegalArgumentException();
+    }
+    this.url = url;
+    this.maxPerUser = maxPerUser;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.borrowTimeoutMillis = borrowTimeoutMillis;
+    if (idleTimeoutMillis > 0) {
+      this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "shop-pool-evictor");
+        t.setDaemon(true);
+        return t;
+      });
+      long period = Math.max(1, idleTimeoutMillis / 2);
+      this.evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    } else {
+      this.evictor = null;
+    }
+  }
+
+  /**
+   * Borrows a connection of a database user. The connection must be closed
+   * to give it back to the pool.
+   *
+   * @param user the database user
+   * @param password the password of the user
+   * @return a validated connection logged in as the user
+   * @throws SQLException if no connection could be opened or the sub-pool stayed exhausted
+   */
+  public Connection getConnection(String user, String password) throws SQLException {
+    if (closed) {
+      throw new SQLException("connection pool is closed");
+    }
+    UserPool pool = pools.computeIfAbsent(user, u -> new UserPool(u, password));
+    return pool.borrow(password);
+  }
+
+  /**
+   * Closes the physical connection of a borrowed connection, instead of returning it to
+   * its sub-pool, e.g. because a cancel request sent for it may still arrive and would
+   * abort a statement of the next borrower. The borrowed connection cannot be used
+   * afterwards, and closing it has no further effect.
+   *
+   * @param conn a connection borrowed from this pool
+   */
+  public void discard(Connection conn) {
+    if (!Proxy.isProxyClass(conn.getClass())
+            || !(Proxy.getInvocationHandler(conn) instanceof Lease)) {
+      throw new IllegalArgumentException("not a connection of this pool");
+    }
+    PooledConnection c = ((Lease) Proxy.getInvocationHandler(conn)).release();
+    if (c != null) {
+      c.pool.giveBack(c, false);
+    }
+  }
+
+  /**
+   * Closes all connections that have been idle for longer than the idle timeout.
+   * This runs periodically in the background, but may also be called directly.
+   */
+  public void evictIdle() {
+    if (idleTimeoutMillis == 0) {
+      return;
+    }
+    long deadline = System.currentTimeMillis() - idleTimeoutMillis;
+    for (UserPool pool : pools.values()) {
+      for (PooledConnection c : pool.removeIdleSince(deadline)) {
+        evicted.incrementAndGet();
+        c.closePhysical();
+      }
+    }
+  }
+
+  /**
+   * Returns a snapshot of the pool statistics.
+   *
+   * @return the current statistics
+   */
+  public Statistics getStatistics() {
+    int idle = 0;
+    int active = 0;
+    for (UserPool pool : pools.values()) {
+      synchronized (pool) {
+        idle += pool.idle.size();
+        active += pool.active;
+      }
+    }
+    return new Statistics(pools.size(), idle, active, created.get(), borrowed.get(),
+            reused.get(), evicted.get(), validationFailures.get(), borrowTimeouts.get());
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    if (evictor != null) {
+      evictor.shutdownNow();
+    }
+    for (UserPool pool : pools.values()) {
+      for (PooledConnection c : pool.removeIdleSince(Long.MAX_VALUE)) {
+        c.closePhysical();
+      }
+    }
+  }
+
+  /**
+   * The sub-pool of one database user.
+   */
+  private final class UserPool {
+    private final String user;
+    private final Semaphore permits = new Semaphore(maxPerUser, true);
+    /** Idle connections, the most recently returned one first. */
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private String password;
+    private int active;
+
+    private UserPool(String user, String password) {
+      this.user = user;
+      this.password = password;
+    }
+
+    private Connection borrow(String password) throws SQLException {
+      try {
+        if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+          borrowTimeouts.incrementAndGet();
+          throw new SQLException(String.format(
+                  "timed out waiting for a connection of user %s", user));
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("interrupted while waiting for a connection", e);
+      }
+      synchronized (this) {
+        active++;
+      }
+      try {
+        PooledConnection c = takeIdle(password);
+        if (c == null) {
+          c = open(password);
+        } else {
+          reused.incrementAndGet();
+        }
+        borrowed.incrementAndGet();
+        return c.lease();
+      } catch (SQLException | RuntimeException e) {
+        synchronized (this) {
+          active--;
+        }
+        permits.release();
+        throw e;
+      }
+    }
+
+    /**
+     * Takes a valid idle connection, if the password matches the one the
+     * sub-pool has authenticated with.
+     */
+    private PooledConnection takeIdle(String password) {
+      while (true) {
+        PooledConnection c;
+        synchronized (this) {
+          if (!this.password.equals(password)) {
+            return null;
+          }
+          c = idle.pollFirst();
+        }
+        if (c == null) {
+          return null;
+        }
+        if (c.isValid()) {
+          return c;
+        }
+        validationFailures.incrementAndGet();
+        c.closePhysical();
+      }
+    }
+
+    private PooledConnection open(String password) throws SQLException {
+      Connection physical = DriverManager.getConnection(url, user, password);
+      created.incrementAndGet();
+      List<PooledConnection> stale = null;
+      synchronized (this) {
+        if (!this.password.equals(password)) {
+          // the server accepted a new password, so connections opened with the old one are stale
+          this.password = password;
+          stale = new ArrayList<>(idle);
+          idle.clear();
+        }
+      }
+      if (stale != null) {
+        for (PooledConnection c : stale) {
+          c.closePhysical();
+        }
+      }
+      return new PooledConnection(this, physical);
+    }
+
+    private void giveBack(PooledConnection c, boolean reusable) {
+      boolean keep = reusable && !closed;
+      synchronized (this) {
+        active--;
+        if (keep) {
+          c.lastUsed = System.currentTimeMillis();
+          idle.addFirst(c);
+        }
+      }
+      if (!keep) {
+        c.closePhysical();
+      }
+      permits.release();
+    }
+
+    private synchronized List<PooledConnection> removeIdleSince(long deadline) {
+      List<PooledConnection> removed = new ArrayList<>();
+      Iterator<PooledConnection> it = idle.descendingIterator();
+      while (it.hasNext()) {
+        PooledConnection c = it.next();
+        if (c.lastUsed > deadline) {
+          break;
+        }
+        it.remove();
+        removed.add(c);
+      }
+      return removed;
+    }
+  }
+
+  /**
+   * A physical connection owned by a sub-pool. Each lease hands out a new proxy,
+   * so a connection that has been closed by its borrower cannot be used any more.
+   * The prepared statements of the connection outlive its leases.
+   */
+  private static final class PooledConnection {
+    private final UserPool pool;
+    private final Connection physical;
+    private final StatementCache statements;
+    private long lastUsed;
+
+    private PooledConnection(UserPool pool, Connection physical) {
+      this.pool = pool;
+      this.physical = physical;
+      this.statements = new StatementCache(physical, StatementCache.DEFAULT_CAPACITY);
+    }
+
+    private boolean isValid() {
+      try {
+        return physical.isValid(VALIDATION_TIMEOUT_SECONDS);
+      } catch (SQLException e) {
+        return false;
+      }
+    }
+
+    private Connection lease() {
+      return (Connection) Proxy.newProxyInstance(ShopConnectionPool.class.getClassLoader(),
+              new Class<?>[] {Connection.class}, new Lease(this));
+    }
+
+    /**
+     * Resets the session state a borrower may have changed: the transaction, settings,
+     * roles, subscribed channels, advisory locks and temporary tables. DISCARD ALL is
+     * not used, as it would also deallocate the prepared statements of the connection.
+     *
+     * @return true, iff the connection can be handed out again
+     */
+    private boolean reset() {
+      try {
+        if (physical.isClosed()) {
+          return false;
+        }
+        if (!physical.getAutoCommit()) {
+          physical.rollback();
+          physical.setAutoCommit(true);
+        }
+        try (Statement stmt = physical.createStatement()) {
+          stmt.execute(ShopResource.getQuery(RESET_SESSION_FILE));
+        }
+        return true;
+      } catch (SQLException | IOException e) {
+        return false;
+      }
+    }
+
+    private void closePhysical() {
+      try {
+        physical.close();
+      } catch (SQLException ignored) {
+        // the connection is discarded anyway
+      }
+    }
+  }
+
+  /**
+   * The connection proxy of one borrower.
+   */
+  private static final class Lease implements InvocationHandler {
+    private PooledConnection connection;
+
+    private Lease(PooledConnection connection) {
+      this.connection = connection;
+    }
+
+    /** Ends the lease, returning the connection if it has not been returned yet. */
+    private synchronized PooledConnection release() {
+      PooledConnection c = connection;
+      connection = null;
+      return c;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      PooledConnection c;
+      if ("close".equals(name)) {
+        c = release();
+      } else {
+        synchronized (this) {
+          c = connection;
+        }
+      }
+      switch (name) {
+        case "close":
+          if (c != null) {
+            c.pool.giveBack(c, c.reset());
+          }
+          return null;
+        case "isClosed":
+          return c == null || c.physical.isClosed();
+        case "equals":
+          return proxy == args[0];
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "toString":
+          return "Pooled" + (c == null ? "Connection[returned]" : c.physical.toString());
+        default:
+          break;
+      }
+      if (c == null) {
+        throw new SQLException("connection has been returned to the pool");
+      }
+      if (("unwrap".equals(name) || "isWrapperFor".equals(name))
+              && args[0] == StatementCache.class) {
+        return "unwrap".equals(name) ? c.statements : Boolean.TRUE;
+      }
+      try {
+        return method.invoke(c.physical, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  /**
+   * An immutable snapshot of the pool statistics.
+   */
+  public static final class Statistics {
+    private final int users;
+    private final int idle;
+    private final int active;
+    private final long created;
+    private final long borrowed;
+    private final long reused;
+    private final long evicted;
+    private final long validationFailures;
+    private final long borrowTimeouts;
+
+    private Statistics(int users, int idle, int active, long created, long borrowed, long reused,
+                       long evicted, long validationFailures, long borrowTimeouts) {
+      this.users = users;
+      this.idle = idle;
+      this.active = active;
+      this.created = created;
+      this.borrowed = borrowed;
+      this.reused = reused;
+      this.evicted = evicted;
+      this.validationFailures = validationFailures;
+      this.borrowTimeouts = borrowTimeouts;
+    }
+
+    /** Number of users with a sub-pool. */
+    public int getUsers() {
+      return users;
+    }
+
+    /** Number of idle physical connections. */
+    public int getIdle() {
+      return idle;
+    }
+
+    /** Number of connections currently borrowed. */
+    public int getActive() {
+      return active;
+    }
+
+    /** Number of physical connections opened so far. */
+    public long getCreated() {
+      return created;
+    }
+
+    /** Number of successful borrows so far. */
+    public long getBorrowed() {
+      return borrowed;
+    }
+
+    /** Number of borrows served by an idle connection. */
+    public long getReused() {
+      return reused;
+    }
+
+    /** Number of connections closed because they were idle for too long. */
+    public long getEvicted() {
+      return evicted;
+    }
+
+    /** Number of idle connections discarded because they failed validation. */
+    public long getValidationFailures() {
+      return validationFailures;
+    }
+
+    /** Number of borrows that timed out on an exhausted sub-pool. */
+    public long getBorrowTimeouts() {
+      return borrowTimeouts;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("users=%d idle=%d active=%d created=%d borrowed=%d reused=%d "
+                      + "evicted=%d validationFailures=%d borrowTimeouts=%d", users, idle,
+              active, created, borrowed, reused, evicted, validationFailures, borrowTimeouts);
+    }
+  }
+}
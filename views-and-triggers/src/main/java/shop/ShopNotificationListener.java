@@ -0,0 +1,195 @@
+package shop;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class receives the notifications sent with NOTIFY or pg_notify on one connection
+ * of its own and delivers them to the handlers of their channels. All caches and feeds
+ * of a client can share one listener, so that they hold only one connection.
+ * If the connection is lost, it is opened again and the handlers are reset,
+ * as notifications sent in between are lost.
+ */
+public class ShopNotificationListener implements AutoCloseable {
+  private static final int POLL_MILLIS = 250;
+  private static final long RECONNECT_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+  private final DbConnector connector;
+  private final ConcurrentMap<String, List<NotificationHandler>> handlers =
+          new ConcurrentHashMap<>();
+  private final Thread poller;
+  private volatile Connection conn;
+  private volatile boolean closed;
+
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong reconnects = new AtomicLong();
+
+  /**
+   * Opens the listening connection and starts delivering notifications.
+   *
+   * @param connector opens the listening connection, also after it has been lost
+   * @throws SQLException if the connection could not be opened
+   */
+  public ShopNotificationListener(DbConnector connector) throws SQLException {
+    this.connector = connector;
+    this.conn = connector.getConnection();
+    this.poller = new Thread(this::poll, "shop-notification-listener");
+    poller.setDaemon(true);
+    poller.start();
+  }
+
+  /**
+   * Subscribes a handler to a channel. When this method returns, the listener receives
+   * all notifications of transactions that commit afterwards.
+   *
+   * @param channel the name of the channel
+   * @param handler the handler
+   * @throws SQLException if the channel could not be listened to
+   */
+  public synchronized void subscribe(String channel, NotificationHandler handler)
+      throws SQLException {
+    if (closed) {
+      throw new SQLException("notification listener is closed");
+    }
+    if (!handlers.containsKey(channel)) {
+      execute(conn, "LISTEN ", channel);
+    }
+    handlers.computeIfAbsent(channel, c -> new CopyOnWriteArrayList<>()).add(handler);
+  }
+
+  /**
+   * Unsubscribes a handler from a channel, and stops listening to the channel
+   * if it was the last handler.
+   *
+   * @param channel the name of the channel
+   * @param handler the handler
+   * @throws SQLException if the channel could not be unlistened
+   */
+  public synchronized void unsubscribe(String channel, NotificationHandler handler)
+      throws SQLException {
+    List<NotificationHandler> subscribed = handlers.get(channel);
+    if (subscribed == null || !subscribed.remove(handler) || !subscribed.isEmpty()) {
+      return;
+    }
+    handlers.remove(channel);
+    if (!closed) {
+      execute(conn, "UNLISTEN ", channel);
+    }
+  }
+
+  /** Number of notifications received so far. */
+  public long getReceived() {
+    return received.get();
+  }
+
+  /** Number of times the listening connection has been opened again after it was lost. */
+  public long getReconnects() {
+    return reconnects.get();
+  }
+
+  @Override
+  public void close() throws SQLException {
+    closed = true;
+    poller.interrupt();
+    try {
+      poller.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    conn.close();
+  }
+
+  private void poll() {
+    while (!closed) {
+      try {
+        PGNotification[] notifications =
+                conn.unwrap(PGConnection.class).getNotifications(POLL_MILLIS);
+        if (notifications != null && notifications.length > 0) {
+          received.addAndGet(notifications.length);
+          dispatch(notifications);
+        }
+      } catch (SQLException e) {
+        if (!closed) {
+          reconnect();
+        }
+      }
+    }
+  }
+
+  private void dispatch(PGNotification[] notifications) {
+    Map<String, List<String>> byChannel = new LinkedHashMap<>();
+    for (PGNotification notification : notifications) {
+      byChannel.computeIfAbsent(notification.getName(), c -> new ArrayList<>())
+              .add(notification.getParameter());
+    }
+    for (Map.Entry<String, List<String>> channel : byChannel.entrySet()) {
+      for (NotificationHandler handler : handlers.getOrDefault(channel.getKey(),
+              new ArrayList<>())) {
+        try {
+          handler.notifications(channel.getValue());
+        } catch (RuntimeException e) {
+          // a failing handler must not keep the others from their notifications
+        }
+      }
+    }
+  }
+
+  private void reconnect() {
+    try {
+      conn.close();
+    } catch (SQLException ignored) {
+      // the connection is broken anyway
+    }
+    while (!closed) {
+      try {
+        TimeUnit.MILLISECONDS.sleep(RECONNECT_DELAY_MILLIS);
+        synchronized (this) {
+          Connection reopened = connector.getConnection();
+          try {
+            for (String channel : handlers.keySet()) {
+              execute(reopened, "LISTEN ", channel);
+            }
+          } catch (SQLException e) {
+            reopened.close();
+            throw e;
+          }
+          conn = reopened;
+        }
+        reconnects.incrementAndGet();
+        for (List<NotificationHandler> subscribed : handlers.values()) {
+          for (NotificationHandler handler : subscribed) {
+            try {
+              handler.reset();
+            } catch (RuntimeException e) {
+              // a failing handler must not keep the others from resetting
+            }
+          }
+        }
+        return;
+      } catch (InterruptedException e) {
+        return;
+      } catch (SQLException e) {
+        // the server is not reachable yet, try again
+      }
+    }
+  }
+
+  private static void execute(Connection conn, String command, String channel)
+      throws SQLException {
+    try (Statement stmt = conn.createStatement()) {
+      stmt.execute(command + conn.unwrap(PGConnection.class).escapeIdentifier(channel));
+    }
+  }
+}
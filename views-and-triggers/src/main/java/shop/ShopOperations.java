@@ -4,39 +4,189 @@ import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 
 /**
  * This class represents database operations of an online shop.
  * One instantiates this class for a particular database URL and user.
  * Subclasses should use this as a basis to implement operations for particular types of users.
+ * Statements are cached per connection, so a ResultSet returned by an operation
+ * stays valid until the same operation is called again.
+ * Queries are recorded by name in the {@link QueryMetrics}, if these are enabled.
  */
 public abstract class ShopOperations implements AutoCloseable {
 
   protected final Connection conn;
 
+  /** The prepared statements of the connection, shared with its pool if it is pooled. */
+  private final StatementCache statements;
+
+  /** Whether this instance owns the statement cache and has to close it. */
+  private final boolean ownsStatements;
+
+  private volatile QueryMetrics metrics = QueryMetrics.getShared();
+
+  private volatile SlowQueryLog slowQueries;
+
+  /** Opens further connections as the user of this instance, or null if unknown. */
+  private DbConnector sameUser;
+
   public ShopOperations(String url, String user, String password)
       throws SQLException {
     this(DriverManager.getConnection(url, user, password));
+    this.sameUser = () -> DriverManager.getConnection(url, user, password);
   }
 
-  public ShopOperations(Connection conn) {
+  /**
+   * Borrows a connection from a pool instead of opening a new one.
+   * Closing this instance returns the connection to the pool.
+   *
+   * @param pool the pool to borrow from
+   * @param user the database user
+   * @param password the password of the user
+   * @throws SQLException if no connection could be borrowed
+   */
+  public ShopOperations(ShopConnectionPool pool, String user, String password)
+      throws SQLException {
+    this(pool.getConnection(user, password));
+    this.sameUser = () -> pool.getConnection(user, password);
+  }
+
+  public ShopOperations(Connection conn) throws SQLException {
     this.conn = conn;
+    this.ownsStatements = !conn.isWrapperFor(StatementCache.class);
+    this.statements = ownsStatements
+            ? new StatementCache(conn, StatementCache.DEFAULT_CAPACITY)
+            : conn.unwrap(StatementCache.class);
+  }
+
+  /**
+   * Returns the statement cache of the connection, e.g. to inspect its hit and miss counters.
+   *
+   * @return the statement cache
+   */
+  public StatementCache getStatementCache() {
+    return statements;
+  }
+
+  /**
+   * Sets the metrics the queries of this instance are recorded in, instead of the shared ones.
+   *
+   * @param metrics the metrics
+   */
+  public void setQueryMetrics(QueryMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public QueryMetrics getQueryMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Sets the log that captures the plans of slow queries of this instance.
+   * Plans can only be captured if this instance has been created for a URL or a pool,
+   * as they are captured on a connection of the same user.
+   *
+   * @param log the log, or null to capture no plans
+   */
+  public void setSlowQueryLog(SlowQueryLog log) {
+    this.slowQueries = log;
   }
 
   protected PreparedStatement prepareStatement(String name) throws SQLException, IOException {
     return this.conn.prepareStatement(ShopResource.getQuery(name));
   }
 
-  protected PreparedStatement prepareSelfClosingStatement(String name)
+  /**
+   * Returns the cached statement of a query, which is reused for the lifetime of the connection.
+   * The statement must not be closed. Executing it again closes its previous result set.
+   *
+   * @param name the name of the query
+   * @return the prepared statement
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query file could not be read
+   */
+  protected PreparedStatement prepareCachedStatement(String name)
+      throws SQLException, IOException {
+    return statements.get(name);
+  }
+
+  /**
+   * Executes a query without parameters once, e.g. to create a database object.
+   *
+   * @param name the name of the query
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query file could not be read
+   */
+  protected void executeOnce(String name) throws SQLException, IOException {
+    try (PreparedStatement stmt = prepareStatement(name)) {
+      QueryMetrics m = metrics;
+      if (!m.isEnabled()) {
+        stmt.execute();
+        return;
+      }
+      long start = System.nanoTime();
+      boolean failed = true;
+      try {
+        stmt.execute();
+        failed = false;
+      } finally {
+        m.record(name, start, failed);
+      }
+    }
+  }
+
+  /**
+   * Executes the cached statement of a query with parameters.
+   * The result set should be closed, so that its rows are counted in the metrics,
+   * and stays valid until the same query is executed again.
+   *
+   * @param name the name of the query
+   * @param params the values of the parameters, in order
+   * @return the result of the query
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query file could not be read
+   */
+  protected ResultSet executeQuery(String name, Object... params)
       throws SQLException, IOException {
-    PreparedStatement s = this.prepareStatement(name);
-    s.closeOnCompletion();
-    return s;
+    PreparedStatement stmt = prepareCachedStatement(name);
+    for (int i = 0; i < params.length; i++) {
+      stmt.setObject(i + 1, params[i]);
+    }
+    QueryMetrics m = metrics;
+    SlowQueryLog log = slowQueries;
+    if (!m.isEnabled() && log == null) {
+      return stmt.executeQuery();
+    }
+    long start = System.nanoTime();
+    ResultSet res;
+    try {
+      res = stmt.executeQuery();
+    } catch (SQLException e) {
+      if (m.isEnabled()) {
+        m.record(name, start, true);
+      }
+      throw e;
+    }
+    if (log != null) {
+      log.offer(name, params, System.nanoTime() - start, sameUser);
+    }
+    if (!m.isEnabled()) {
+      return res;
+    }
+    m.record(name, start, false);
+    return m.countRows(name, res);
   }
 
   @Override
   public void close() throws SQLException {
-    this.conn.close();
+    try {
+      if (ownsStatements) {
+        statements.close();
+      }
+    } finally {
+      this.conn.close();
+    }
   }
-}
\ No newline at end of file
+}
@@ -1,14 +1,45 @@
 package shop;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 
 /**
  * This class is a utility class for getting mock data from
  * the .data files and queries from the .sql files.
+ * All queries are read once, when the class is loaded.
  */
 public class ShopResource {
+  private static final String QUERY_DIRECTORY = "sql";
+  private static final String QUERY_SUFFIX = ".sql";
+
+  /** All queries by name, read from /sql/*.sql. */
+  private static final Map<String, String> QUERIES = loadQueries();
+
+  /** The sorted names of all queries. */
+  private static final Set<String> QUERY_NAMES =
+          Collections.unmodifiableSet(new TreeSet<>(QUERIES.keySet()));
 
   /**
    * Returns an input stream to a data resource.
@@ -30,9 +61,91 @@ public class ShopResource {
    * @throws IOException if the name is invalid
    */
   public static String getQuery(String name) throws IOException {
-    String path = String.format("/sql/%s.sql", name);
-    InputStream s = ShopResource.class.getResourceAsStream(path);
-    assert s != null;
+    String query = QUERIES.get(name);
+    if (query == null) {
+      throw new FileNotFoundException(String.format("no query file /%s/%s%s",
+              QUERY_DIRECTORY, name, QUERY_SUFFIX));
+    }
+    return query;
+  }
+
+  /**
+   * Returns the names of all known queries.
+   *
+   * @return the sorted query names
+   */
+  public static Set<String> getQueryNames() {
+    return QUERY_NAMES;
+  }
+
+  /**
+   * Lets the server parse every known query once, without executing it.
+   * Queries referring to objects that do not exist yet, such as the history view
+   * before it has been created, are reported as invalid as well.
+   * The connection should be in auto-commit mode, as a failed parse aborts a transaction.
+   *
+   * @param conn the connection to validate the queries with
+   * @return the errors of all invalid queries by name, empty if all queries are valid
+   */
+  public static Map<String, SQLException> validateQueries(Connection conn) {
+    Map<String, SQLException> errors = new LinkedHashMap<>();
+    for (String name : QUERY_NAMES) {
+      try (PreparedStatement stmt = conn.prepareStatement(QUERIES.get(name))) {
+        // describing the parameters makes the driver parse the statement on the server
+        stmt.getParameterMetaData();
+      } catch (SQLException e) {
+        errors.put(name, e);
+      }
+    }
+    return errors;
+  }
+
+  private static Map<String, String> loadQueries() {
+    URL directory = ShopResource.class.getResource("/" + QUERY_DIRECTORY);
+    if (directory == null) {
+      throw new IllegalStateException("query directory /" + QUERY_DIRECTORY + " not found");
+    }
+    Map<String, String> queries = new HashMap<>();
+    try {
+      if ("jar".equals(directory.getProtocol())) {
+        JarURLConnection connection = (JarURLConnection) directory.openConnection();
+        connection.setUseCaches(false);
+        try (JarFile jar = connection.getJarFile()) {
+          Enumeration<JarEntry> entries = jar.entries();
+          while (entries.hasMoreElements()) {
+            JarEntry entry = entries.nextElement();
+            String path = entry.getName();
+            if (path.startsWith(QUERY_DIRECTORY + "/") && path.endsWith(QUERY_SUFFIX)
+                    && path.indexOf('/', QUERY_DIRECTORY.length() + 1) < 0) {
+              try (InputStream s = jar.getInputStream(entry)) {
+                queries.put(queryName(path.substring(QUERY_DIRECTORY.length() + 1)), read(s));
+              }
+            }
+          }
+        }
+      } else {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(
+                Paths.get(directory.toURI()), "*" + QUERY_SUFFIX)) {
+          for (Path file : files) {
+            try (InputStream s = Files.newInputStream(file)) {
+              queries.put(queryName(file.getFileName().toString()), read(s));
+            }
+          }
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("could not read the query files", e);
+    } catch (URISyntaxException e) {
+      throw new IllegalStateException("invalid query directory " + directory, e);
+    }
+    return Collections.unmodifiableMap(queries);
+  }
+
+  private static String queryName(String fileName) {
+    return fileName.substring(0, fileName.length() - QUERY_SUFFIX.length());
+  }
+
+  private static String read(InputStream s) throws IOException {
     ByteArrayOutputStream result = new ByteArrayOutputStream();
     byte[] buffer = new byte[1024];
     int length;
@@ -42,4 +155,4 @@ public class ShopResource {
     // StandardCharsets.UTF_8.name() > JDK 7
     return result.toString("UTF-8");
   }
-}
\ No newline at end of file
+}
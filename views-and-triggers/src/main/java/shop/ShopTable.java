@@ -0,0 +1,24 @@
+package shop;
+
+/**
+ * The tables of a shop database that may be exported.
+ * Only these names are ever put into export commands.
+ */
+public enum ShopTable {
+  CUSTOMER("customer"), ARTICLE("article"), PURCHASE("purchase"), DAILY_SALES("daily_sales");
+
+  private final String name;
+
+  ShopTable(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Returns the name of the table in the database.
+   *
+   * @return the table name
+   */
+  public String getName() {
+    return name;
+  }
+}
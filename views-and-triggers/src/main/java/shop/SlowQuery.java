@@ -0,0 +1,74 @@
+package shop;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class is a slow execution of a named query together with the plan of executing
+ * it again, as captured by a {@link SlowQueryLog}.
+ */
+public final class SlowQuery {
+
+  private final String name;
+
+  private final List<String> parameters;
+
+  private final String user;
+
+  private final Instant timestamp;
+
+  /** Time of the slow execution, not of the execution that was explained. */
+  private final long elapsedMicros;
+
+  /** The output of EXPLAIN (ANALYZE, BUFFERS, FORMAT JSON), or null if it failed. */
+  private final String plan;
+
+  /** Why the plan could not be captured, or null. */
+  private final String error;
+
+  SlowQuery(String name, List<String> parameters, String user, Instant timestamp,
+            long elapsedMicros, String plan, String error) {
+    this.name = name;
+    this.parameters = Collections.unmodifiableList(parameters);
+    this.user = user;
+    this.timestamp = timestamp;
+    this.elapsedMicros = elapsedMicros;
+    this.plan = plan;
+    this.error = error;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public List<String> getParameters() {
+    return parameters;
+  }
+
+  public String getUser() {
+    return user;
+  }
+
+  public Instant getTimestamp() {
+    return timestamp;
+  }
+
+  public long getElapsedMicros() {
+    return elapsedMicros;
+  }
+
+  public String getPlan() {
+    return plan;
+  }
+
+  public String getError() {
+    return error;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s %s%s by %s took %d us", timestamp, name, parameters, user,
+            elapsedMicros);
+  }
+}
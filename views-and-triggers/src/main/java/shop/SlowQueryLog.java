@@ -0,0 +1,287 @@
+package shop;
+
+import java.io.IOException;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class captures the plans of slow queries of shop operations, see
+ * {@link ShopOperations#setSlowQueryLog}. When a named query takes longer than the
+ * threshold, the same statement is executed again with the same parameters, as the same user,
+ * on a connection of its own, under EXPLAIN (ANALYZE, BUFFERS, FORMAT JSON), in a transaction
+ * that is rolled back, so that purchases and cancellations are not repeated.
+ * Captures run in the background, are sampled and rate-limited, and the latest ones are kept
+ * in a ring buffer.
+ */
+public class SlowQueryLog implements AutoCloseable {
+  private static final String EXPLAIN = "EXPLAIN (ANALYZE, BUFFERS, FORMAT JSON) ";
+  private static final int PENDING_CAPTURES = 16;
+
+  private final long thresholdNanos;
+  private final double sampleRate;
+  private final long minIntervalNanos;
+  private final SlowQuery[] captures;
+  private final ThreadPoolExecutor executor;
+  private int next;
+  private int size;
+  private final AtomicLong nextCaptureNanos = new AtomicLong(System.nanoTime());
+
+  private final AtomicLong slow = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+  private final AtomicLong captured = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  /**
+   * Creates a log.
+   *
+   * @param thresholdMillis the time from which on a query counts as slow
+   * @param sampleRate the fraction of slow queries whose plans are captured, between 0 and 1
+   * @param minIntervalMillis the minimum time between two captures
+   * @param capacity the number of captures kept
+   */
+  public SlowQueryLog(long thresholdMillis, double sampleRate, long minIntervalMillis,
+                      int capacity) {
+    if (thresholdMillis < 0 || sampleRate < 0 || sampleRate > 1 || minIntervalMillis < 0
+            || capacity < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    this.sampleRate = sampleRate;
+    this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+    this.captures = new SlowQuery[capacity];
+    this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(PENDING_CAPTURES), r -> {
+              Thread t = new Thread(r, "shop-slow-query-log");
+              t.setDaemon(true);
+              return t;
+            });
+  }
+
+  /**
+   * Returns the kept captures.
+   *
+   * @return the captures, oldest first
+   */
+  public synchronized List<SlowQuery> getCaptures() {
+    List<SlowQuery> result = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      result.add(captures[(next - size + i + captures.length) % captures.length]);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the kept captures of a query.
+   *
+   * @param name the name of the query
+   * @return the captures, oldest first
+   */
+  public List<SlowQuery> getCaptures(String name) {
+    List<SlowQuery> result = new ArrayList<>();
+    for (SlowQuery capture : getCaptures()) {
+      if (capture.getName().equals(name)) {
+        result.add(capture);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Writes the kept captures as JSON, one object per line, oldest first.
+   *
+   * @param out where to write the captures
+   * @throws IOException if writing fails
+   */
+  public void dump(Appendable out) throws IOException {
+    for (SlowQuery capture : getCaptures()) {
+      out.append("{\"name\":").append(quote(capture.getName()))
+              .append(",\"timestamp\":").append(quote(capture.getTimestamp().toString()))
+              .append(",\"elapsedMicros\":").append(Long.toString(capture.getElapsedMicros()))
+              .append(",\"user\":").append(quote(capture.getUser()))
+              .append(",\"parameters\":[");
+      for (int i = 0; i < capture.getParameters().size(); i++) {
+        out.append(i == 0 ? "" : ",").append(quote(capture.getParameters().get(i)));
+      }
+      out.append("],");
+      if (capture.getPlan() != null) {
+        out.append("\"plan\":").append(capture.getPlan().replace('\n', ' '));
+      } else {
+        out.append("\"error\":").append(quote(capture.getError()));
+      }
+      out.append("}\n");
+    }
+  }
+
+  /** Number of queries that took longer than the threshold. */
+  public long getSlowQueries() {
+    return slow.get();
+  }
+
+  /** Number of slow queries that were not captured, as they were sampled out or rate-limited. */
+  public long getSkipped() {
+    return skipped.get();
+  }
+
+  /** Number of captured plans. */
+  public long getCaptured() {
+    return captured.get();
+  }
+
+  /** Number of captures that failed, e.g. as the statement cannot be explained. */
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /** Stops capturing. Captures in progress are finished. */
+  @Override
+  public void close() {
+    executor.shutdown();
+  }
+
+  /**
+   * Captures the plan of a query, if it was slow and is sampled.
+   *
+   * @param name the name of the query
+   * @param params the parameters of the query
+   * @param elapsedNanos the time the query took
+   * @param connector opens connections as the user who executed the query,
+   *     or null if there is no such connector
+   */
+  void offer(String name, Object[] params, long elapsedNanos, DbConnector connector) {
+    if (elapsedNanos < thresholdNanos) {
+      return;
+    }
+    slow.incrementAndGet();
+    if (connector == null || !sampled() || !acquireSlot()) {
+      skipped.incrementAndGet();
+      return;
+    }
+    Object[] values = new Object[params.length];
+    try {
+      for (int i = 0; i < params.length; i++) {
+        // arrays belong to the connection of the query, so their elements are copied now
+        values[i] = params[i] instanceof Array ? new ArrayValue((Array) params[i]) : params[i];
+      }
+    } catch (SQLException e) {
+      skipped.incrementAndGet();
+      return;
+    }
+    Instant timestamp = Instant.now();
+    try {
+      executor.execute(() -> capture(name, values, elapsedNanos, timestamp, connector));
+    } catch (RejectedExecutionException e) {
+      skipped.incrementAndGet();
+    }
+  }
+
+  private boolean sampled() {
+    return sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+  }
+
+  private boolean acquireSlot() {
+    long now = System.nanoTime();
+    long allowed = nextCaptureNanos.get();
+    return now - allowed >= 0 && nextCaptureNanos.compareAndSet(allowed, now + minIntervalNanos);
+  }
+
+  private void capture(String name, Object[] params, long elapsedNanos, Instant timestamp,
+                       DbConnector connector) {
+    List<String> parameters = new ArrayList<>(params.length);
+    for (Object param : params) {
+      parameters.add(String.valueOf(param));
+    }
+    String user = null;
+    String plan = null;
+    String error = null;
+    try (Connection conn = connector.getConnection()) {
+      user = conn.getMetaData().getUserName();
+      conn.setAutoCommit(false);
+      try (PreparedStatement stmt = conn.prepareStatement(
+              EXPLAIN + ShopResource.getQuery(name))) {
+        for (int i = 0; i < params.length; i++) {
+          if (params[i] instanceof ArrayValue) {
+            ArrayValue array = (ArrayValue) params[i];
+            stmt.setArray(i + 1, conn.createArrayOf(array.type, array.elements));
+          } else {
+            stmt.setObject(i + 1, params[i]);
+          }
+        }
+        try (ResultSet res = stmt.executeQuery()) {
+          StringBuilder lines = new StringBuilder();
+          while (res.next()) {
+            lines.append(res.getString(1));
+          }
+          plan = lines.toString();
+        }
+      } finally {
+        conn.rollback();
+        conn.setAutoCommit(true);
+      }
+      captured.incrementAndGet();
+    } catch (SQLException | IOException | RuntimeException e) {
+      failed.incrementAndGet();
+      error = e.getMessage();
+    }
+    add(new SlowQuery(name, parameters, user, timestamp,
+            TimeUnit.NANOSECONDS.toMicros(elapsedNanos), plan, error));
+  }
+
+  private synchronized void add(SlowQuery capture) {
+    captures[next] = capture;
+    next = (next + 1) % captures.length;
+    size = Math.min(size + 1, captures.length);
+  }
+
+  /** The type and elements of an array parameter. */
+  private static final class ArrayValue {
+    private final String type;
+    private final Object[] elements;
+
+    private ArrayValue(Array array) throws SQLException {
+      this.type = array.getBaseTypeName();
+      this.elements = (Object[]) array.getArray();
+    }
+
+    @Override
+    public String toString() {
+      return Arrays.toString(elements);
+    }
+  }
+
+  private static String quote(String s) {
+    if (s == null) {
+      return "null";
+    }
+    StringBuilder quoted = new StringBuilder("\"");
+    for (char c : s.toCharArray()) {
+      switch (c) {
+        case '"':
+          quoted.append("\\\"");
+          break;
+        case '\\':
+          quoted.append("\\\\");
+          break;
+        default:
+          if (c < 0x20) {
+            quoted.append(String.format("\\u%04x", (int) c));
+          } else {
+            quoted.append(c);
+          }
+      }
+    }
+    return quoted.append('"').toString();
+  }
+}
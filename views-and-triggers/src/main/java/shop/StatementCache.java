@@ -0,0 +1,126 @@
+package shop;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.postgresql.PGStatement;
+
+/**
+ * This class caches the prepared statements of one connection by query name.
+ * The cache is bounded; when it is full, the least recently used statement is closed.
+ * Cached statements are prepared on the server on their first execution,
+ * so the server parses and plans each named query only once per connection.
+ */
+public class StatementCache implements AutoCloseable {
+  /** Default number of statements kept per connection. */
+  public static final int DEFAULT_CAPACITY = 32;
+
+  private final Connection conn;
+  private final int capacity;
+  private final Map<String, PreparedStatement> statements;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param conn the connection to prepare the statements with
+   * @param capacity the maximum number of cached statements
+   */
+  public StatementCache(Connection conn, int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.conn = conn;
+    this.capacity = capacity;
+    this.statements = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  /**
+   * Returns the cached statement of a query, preparing it on a miss.
+   * The statement must not be closed by the caller. Executing it again
+   * closes the result set of its previous execution.
+   *
+   * @param name the name of the query
+   * @return the prepared statement
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query file could not be read
+   */
+  public synchronized PreparedStatement get(String name) throws SQLException, IOException {
+    PreparedStatement stmt = statements.get(name);
+    if (stmt != null && !stmt.isClosed()) {
+      hits++;
+      return stmt;
+    }
+    misses++;
+    stmt = conn.prepareStatement(ShopResource.getQuery(name));
+    if (stmt.isWrapperFor(PGStatement.class)) {
+      stmt.unwrap(PGStatement.class).setPrepareThreshold(1);
+    }
+    statements.put(name, stmt);
+    if (statements.size() > capacity) {
+      Iterator<PreparedStatement> eldest = statements.values().iterator();
+      PreparedStatement evicted = eldest.next();
+      eldest.remove();
+      evictions++;
+      evicted.close();
+    }
+    return stmt;
+  }
+
+  /** Number of lookups served by a cached statement. */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /** Number of lookups that had to prepare a new statement. */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /** Number of statements closed to make room for others. */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /** Number of statements currently cached. */
+  public synchronized int size() {
+    return statements.size();
+  }
+
+  /**
+   * Closes all cached statements.
+   *
+   * @throws SQLException if a statement could not be closed
+   */
+  @Override
+  public void close() throws SQLException {
+    List<PreparedStatement> closing;
+    synchronized (this) {
+      closing = new ArrayList<>(statements.values());
+      statements.clear();
+    }
+    SQLException error = null;
+    for (PreparedStatement stmt : closing) {
+      try {
+        stmt.close();
+      } catch (SQLException e) {
+        if (error == null) {
+          error = e;
+        } else {
+          error.addSuppressed(e);
+        }
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+}
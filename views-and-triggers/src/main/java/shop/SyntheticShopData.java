@@ -0,0 +1,270 @@
+package shop;
+
+import java.io.BufferedWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * This class generates synthetic shop data of any size, e.g. to test how queries scale.
+ * The data only depends on the seed and the sizes, so every run produces the same rows.
+ * Articles and customers can be skewed: with a skew s greater than 0, the k-th article
+ * (customer) is chosen for a purchase with a probability proportional to 1 / k^s,
+ * so a few hot articles and heavy buyers dominate the purchases.
+ * Rows are produced while COPY reads them, through a pipe, without intermediate files.
+ */
+public class SyntheticShopData {
+  private static final int PIPE_BUFFER_SIZE = 1 << 16;
+  private static final long CUSTOMER_STREAM = 0x5DEECE66DL;
+  private static final long ARTICLE_STREAM = 0xB5AD4ECEDA1CE2A9L;
+  private static final long PURCHASE_STREAM = 0x9E3779B97F4A7C15L;
+  private static final LocalDate DEFAULT_FIRST_DAY = LocalDate.of(2014, 1, 1);
+
+  private final long seed;
+  private final int customers;
+  private final int articles;
+  private final int purchases;
+  private final double customerSkew;
+  private final double articleSkew;
+  private final LocalDate firstDay;
+  private final int days;
+
+  /**
+   * Describes a data set with uniformly chosen customers and articles,
+   * with purchases spread over the year 2014, like the bundled data.
+   *
+   * @param seed the seed of the random generator
+   * @param customers the number of customers
+   * @param articles the number of articles
+   * @param purchases the number of purchases
+   */
+  public SyntheticShopData(long seed, int customers, int articles, int purchases) {
+    this(seed, customers, articles, purchases, 0, 0, DEFAULT_FIRST_DAY, 365);
+  }
+
+  /**
+   * Describes a data set.
+   *
+   * @param seed the seed of the random generator
+   * @param customers the number of customers
+   * @param articles the number of articles
+   * @param purchases the number of purchases
+   * @param customerSkew the Zipf exponent of the customers of purchases, 0 for uniform
+   * @param articleSkew the Zipf exponent of the articles of purchases, 0 for uniform
+   * @param firstDay the date of the earliest purchases
+   * @param days the number of days purchases are spread over
+   */
+  public SyntheticShopData(long seed, int customers, int articles, int purchases,
+                           double customerSkew, double articleSkew, LocalDate firstDay,
+                           int days) {
+    if (customers < 1 || articles < 1 || purchases < 0 || customerSkew < 0
+            || articleSkew < 0 || days < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.seed = seed;
+    this.customers = customers;
+    this.articles = articles;
+    this.purchases = purchases;
+    this.customerSkew = customerSkew;
+    this.articleSkew = articleSkew;
+    this.firstDay = firstDay;
+    this.days = days;
+  }
+
+  /**
+   * Returns the name of a generated customer, which is also a valid user name.
+   *
+   * @param index the index of the customer, starting at 0
+   * @return the name of the customer
+   */
+  public static String customerName(int index) {
+    return "c" + index;
+  }
+
+  /**
+   * Returns the name of a generated article.
+   *
+   * @param index the index of the article, starting at 0
+   * @return the name of the article
+   */
+  public static String articleName(int index) {
+    return "a" + index;
+  }
+
+  /**
+   * Returns a loader for the generated data, as an alternative to the bundled data files.
+   *
+   * @param connector opens the additional connections for parallel loads
+   * @return the loader
+   */
+  public BulkLoader loader(DbConnector connector) {
+    return new BulkLoader(connector, customers(), articles(), purchases());
+  }
+
+  /**
+   * Returns the source of the customer table.
+   *
+   * @return a text format source generating the rows
+   */
+  public BulkLoadSource customers() {
+    return source(out -> {
+      SplittableRandom random = new SplittableRandom(seed ^ CUSTOMER_STREAM);
+      for (int i = 0; i < customers; i++) {
+        out.write(customerName(i));
+        out.write('\t');
+        out.write(Integer.toString(500 + random.nextInt(4501)));
+        out.write('\n');
+      }
+    });
+  }
+
+  /**
+   * Returns the source of the article table.
+   *
+   * @return a text format source generating the rows
+   */
+  public BulkLoadSource articles() {
+    return source(out -> {
+      SplittableRandom random = new SplittableRandom(seed ^ ARTICLE_STREAM);
+      for (int i = 0; i < articles; i++) {
+        out.write(articleName(i));
+        out.write('\t');
+        out.write(Integer.toString(1 + random.nextInt(500)));
+        out.write('\n');
+      }
+    });
+  }
+
+  /**
+   * Returns the source of the purchase table.
+   *
+   * @return a text format source generating the rows
+   */
+  public BulkLoadSource purchases() {
+    return source(out -> {
+      SplittableRandom random = new SplittableRandom(seed ^ PURCHASE_STREAM);
+      ZipfSampler customer = new ZipfSampler(customers, customerSkew);
+      ZipfSampler article = new ZipfSampler(articles, articleSkew);
+      String[] dates = new String[days];
+      for (int d = 0; d < days; d++) {
+        dates[d] = firstDay.plusDays(d).toString();
+      }
+      for (int id = 1; id <= purchases; id++) {
+        out.write(Integer.toString(id));
+        out.write('\t');
+        out.write(customerName(customer.next(random)));
+        out.write('\t');
+        out.write(dates[random.nextInt(days)]);
+        out.write('\t');
+        out.write(articleName(article.next(random)));
+        out.write('\t');
+        out.write(Integer.toString(1 + random.nextInt(10)));
+        out.write('\n');
+      }
+    });
+  }
+
+  /** Writes the rows of one table in COPY text format. */
+  private interface RowWriter {
+    void write(Writer out) throws IOException;
+  }
+
+  private static BulkLoadSource source(RowWriter rows) {
+    return new BulkLoadSource(() -> {
+      PipedInputStream in = new PipedInputStream(PIPE_BUFFER_SIZE);
+      PipedOutputStream pipe = new PipedOutputStream(in);
+      GeneratedInputStream generated = new GeneratedInputStream(in);
+      Thread writer = new Thread(() -> {
+        Writer out = new BufferedWriter(new OutputStreamWriter(pipe, StandardCharsets.UTF_8),
+                PIPE_BUFFER_SIZE);
+        try {
+          rows.write(out);
+          out.flush();
+        } catch (IOException | RuntimeException e) {
+          // record the error before closing, so the reader sees it at the end of the stream
+          generated.error = e;
+        } finally {
+          try {
+            pipe.close();
+          } catch (IOException ignored) {
+            // the reader has gone away
+          }
+        }
+      }, "shop-data-generator");
+      writer.setDaemon(true);
+      writer.start();
+      return generated;
+    }, BulkLoadSource.Format.TEXT, false);
+  }
+
+  /**
+   * The reading end of a generator pipe, which turns a failed generator into an error
+   * instead of a silently truncated table.
+   */
+  private static final class GeneratedInputStream extends FilterInputStream {
+    private volatile Throwable error;
+
+    private GeneratedInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      return check(super.read());
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return check(super.read(b, off, len));
+    }
+
+    private int check(int n) throws IOException {
+      if (n < 0 && error != null) {
+        throw new IOException("data generator failed", error);
+      }
+      return n;
+    }
+  }
+
+  /**
+   * Draws indexes 0..n-1 where index k has a probability proportional to 1 / (k+1)^s.
+   */
+  private static final class ZipfSampler {
+    private final int n;
+    /** The cumulative probabilities, or null for a uniform distribution. */
+    private final double[] cdf;
+
+    private ZipfSampler(int n, double s) {
+      this.n = n;
+      if (s == 0) {
+        this.cdf = null;
+        return;
+      }
+      this.cdf = new double[n];
+      double sum = 0;
+      for (int k = 0; k < n; k++) {
+        sum += 1 / Math.pow(k + 1, s);
+        cdf[k] = sum;
+      }
+      for (int k = 0; k < n; k++) {
+        cdf[k] /= sum;
+      }
+    }
+
+    private int next(SplittableRandom random) {
+      if (cdf == null) {
+        return random.nextInt(n);
+      }
+      int k = Arrays.binarySearch(cdf, random.nextDouble());
+      return Math.min(k < 0 ? -k - 1 : k, n - 1);
+    }
+  }
+}
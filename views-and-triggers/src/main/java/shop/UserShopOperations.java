@@ -1,8 +1,11 @@
 package shop;
 
 import java.io.IOException;
+import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
 
 public abstract class UserShopOperations extends ShopOperations {
 
@@ -10,6 +13,15 @@ public abstract class UserShopOperations extends ShopOperations {
     super(url, user, password);
   }
 
+  public UserShopOperations(ShopConnectionPool pool, String user, String password)
+      throws SQLException {
+    super(pool, user, password);
+  }
+
+  public UserShopOperations(Connection conn) throws SQLException {
+    super(conn);
+  }
+
   /**
    * Purchase an article for the user associated to this ShopOperations instance.
    *
@@ -24,6 +36,20 @@ public abstract class UserShopOperations extends ShopOperations {
   public abstract boolean newPurchase(String article, int quantity)
       throws SQLException, IOException;
 
+  /**
+   * Purchase several articles at once for the user associated to this ShopOperations instance.
+   * All lines are purchased in one round trip and one transaction, and only if the balance
+   * covers the total price of the whole basket. Otherwise no line is purchased.
+   *
+   * @param items the articles and quantities to purchase
+   * @return one result per item, in the iteration order of the items
+   *
+   * @throws SQLException if a database access error occurs, e.g. for an unknown article
+   * @throws IOException if the required query files could not be read
+   */
+  public abstract List<PurchaseResult> newPurchases(Collection<PurchaseItem> items)
+      throws SQLException, IOException;
+
   /**
    * Cancel a purchase of the user associated to this ShopOperations instance.
    *
@@ -33,8 +59,22 @@ public abstract class UserShopOperations extends ShopOperations {
    */
   public abstract void cancelPurchase(String article) throws SQLException, IOException;
 
+  /**
+   * Cancel today's purchases of several articles of the user associated to this
+   * ShopOperations instance, and refund them in one transaction.
+   *
+   * @param articles names of the articles to cancel
+   * @return the number of cancelled purchases
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public abstract int cancelPurchases(Collection<String> articles)
+      throws SQLException, IOException;
+
   /**
    * Selects all entries from the purchase history of the user associated with this instance.
+   * The statement is cached with the connection, so the result set is closed by the next
+   * call of this method on this instance; read it before selecting the history again.
    *
    * @return a ResultSet with the history
    * @throws SQLException if a database access error occurs
@@ -42,8 +82,46 @@ public abstract class UserShopOperations extends ShopOperations {
    */
   public abstract ResultSet selectHistory() throws SQLException, IOException;
 
+  /**
+   * Streams the purchase history of the user associated with this instance, newest first.
+   * The cursor holds a transaction open on this instance's connection until it is closed.
+   *
+   * @param fetchSize the number of rows fetched from the server at a time
+   * @return a cursor over the history
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public abstract HistoryCursor streamHistory(int fetchSize) throws SQLException, IOException;
+
+  /**
+   * Selects the newest entries from the purchase history of the user associated with this
+   * instance.
+   *
+   * @param size the maximum number of entries
+   * @return the first page of the history, newest first
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public abstract List<HistoryEntry> selectHistoryPage(int size)
+      throws SQLException, IOException;
+
+  /**
+   * Selects the entries from the purchase history of the user associated with this instance
+   * that follow a given entry. As the history is ordered by descending id,
+   * these are the entries with smaller ids.
+   *
+   * @param afterId the id of the last entry of the previous page
+   * @param size the maximum number of entries
+   * @return the next page of the history, newest first, empty after the last page
+   * @throws SQLException if a database access error occurs
+   * @throws IOException if the required query files could not be read
+   */
+  public abstract List<HistoryEntry> selectHistoryPage(int afterId, int size)
+      throws SQLException, IOException;
+
   /**
    * Selects today's entries from the purchase history of the user associated with this instance.
+   * The result set is closed by the next call of this method on this instance.
    *
    * @return a ResultSet with the history
    * @throws SQLException if a database access error occurs
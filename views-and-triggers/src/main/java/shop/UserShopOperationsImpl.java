@@ -1,48 +1,125 @@
 package shop;
 
 import java.io.IOException;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * This class implements all operations that users of the webshop are allowed to execute.
  */
 public class UserShopOperationsImpl extends UserShopOperations {
   private static final String NEW_PURCHASE_FILE = "newPurchase";
+  private static final String NEW_PURCHASES_FILE = "newPurchases";
   private static final String CANCEL_PURCHASE_FILE = "cancelPurchase";
+  private static final String CANCEL_PURCHASES_FILE = "cancelPurchases";
   private static final String SELECT_HISTORY_FILE = "selectHistory";
   private static final String SELECT_HISTORY_TODAY_FILE = "selectHistoryToday";
+  private static final String SELECT_HISTORY_PAGE_FILE = "selectHistoryPage";
 
   public UserShopOperationsImpl(String url, String user, String password) throws SQLException {
     super(url, user, password);
   }
 
+  public UserShopOperationsImpl(ShopConnectionPool pool, String user, String password)
+      throws SQLException {
+    super(pool, user, password);
+  }
+
+  public UserShopOperationsImpl(Connection conn) throws SQLException {
+    super(conn);
+  }
+
   @Override
   public boolean newPurchase(String article, int quantity) throws SQLException, IOException {
-    PreparedStatement stmt = prepareSelfClosingStatement(NEW_PURCHASE_FILE);
-    stmt.setString(1, article);
-    stmt.setInt(2, quantity);
-    try (ResultSet res = stmt.executeQuery()) {
+    try (ResultSet res = executeQuery(NEW_PURCHASE_FILE, article, quantity)) {
       res.next();
       return res.getBoolean(1);
     }
   }
 
+  @Override
+  public List<PurchaseResult> newPurchases(Collection<PurchaseItem> items)
+      throws SQLException, IOException {
+    if (items.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<PurchaseItem> lines = new ArrayList<>(items);
+    String[] articles = new String[lines.size()];
+    Integer[] quantities = new Integer[lines.size()];
+    for (int i = 0; i < articles.length; i++) {
+      articles[i] = lines.get(i).getArticle();
+      quantities[i] = lines.get(i).getQuantity();
+    }
+    List<PurchaseResult> results = new ArrayList<>(lines.size());
+    try (ResultSet res = executeQuery(NEW_PURCHASES_FILE, conn.createArrayOf("text", articles),
+            conn.createArrayOf("integer", quantities))) {
+      while (res.next()) {
+        PurchaseItem item = lines.get(res.getInt(1) - 1);
+        results.add(new PurchaseResult(item, res.getInt(3), res.getInt(2)));
+      }
+    }
+    return results;
+  }
+
   @Override
   public void cancelPurchase(String article) throws SQLException, IOException {
-    PreparedStatement stmt = prepareSelfClosingStatement(CANCEL_PURCHASE_FILE);
-    stmt.setString(1, article);
-    stmt.executeUpdate();
+    // the number of cancelled purchases is not reported by this method
+    executeQuery(CANCEL_PURCHASE_FILE, article).close();
+  }
+
+  @Override
+  public int cancelPurchases(Collection<String> articles) throws SQLException, IOException {
+    if (articles.isEmpty()) {
+      return 0;
+    }
+    try (ResultSet res = executeQuery(CANCEL_PURCHASES_FILE,
+            conn.createArrayOf("text", articles.toArray()))) {
+      res.next();
+      return res.getInt(1);
+    }
   }
 
   @Override
   public ResultSet selectHistory() throws SQLException, IOException {
-    return prepareSelfClosingStatement(SELECT_HISTORY_FILE).executeQuery();
+    return executeQuery(SELECT_HISTORY_FILE);
+  }
+
+  @Override
+  public HistoryCursor streamHistory(int fetchSize) throws SQLException, IOException {
+    PreparedStatement stmt = prepareStatement(SELECT_HISTORY_FILE);
+    try {
+      return new HistoryCursor(conn, stmt, fetchSize);
+    } catch (SQLException | RuntimeException e) {
+      stmt.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public List<HistoryEntry> selectHistoryPage(int size) throws SQLException, IOException {
+    return selectHistoryPage(Integer.MAX_VALUE, size);
+  }
+
+  @Override
+  public List<HistoryEntry> selectHistoryPage(int afterId, int size)
+      throws SQLException, IOException {
+    List<HistoryEntry> page = new ArrayList<>(Math.min(size, 1024));
+    try (ResultSet res = executeQuery(SELECT_HISTORY_PAGE_FILE, afterId, size)) {
+      while (res.next()) {
+        page.add(HistoryEntry.of(res));
+      }
+    }
+    return page;
   }
 
   @Override
   public ResultSet selectHistoryToday() throws SQLException, IOException {
-    return prepareSelfClosingStatement(SELECT_HISTORY_TODAY_FILE).executeQuery();
+    return executeQuery(SELECT_HISTORY_TODAY_FILE);
   }
 }
@@ -0,0 +1,268 @@
+package shop;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class simulates customers that shop concurrently, each on a thread and a pooled
+ * connection of its own. Every customer repeatedly thinks for a while and then purchases an
+ * article, cancels a purchase or reads its history, chosen at random with configurable weights.
+ * The latencies of each operation are recorded, and the total value of the shop is compared
+ * before and after the run, as purchases and cancellations must neither create nor destroy value.
+ * Customers have to be provisioned as users whose password is their name.
+ */
+public class Workload {
+  /** The operations a simulated customer executes. */
+  public enum Operation {
+    /** Purchases an article with {@link UserShopOperations#newPurchase}. */
+    PURCHASE,
+    /** Cancels today's purchases of an article with {@link UserShopOperations#cancelPurchase}. */
+    CANCEL,
+    /** Reads the whole history with {@link UserShopOperations#selectHistory}. */
+    HISTORY
+  }
+
+  /** Number of recently purchased articles each customer remembers as candidates to cancel. */
+  private static final int REMEMBERED_PURCHASES = 16;
+
+  private final ShopConnectionPool pool;
+  private final String admin;
+  private final String adminPassword;
+  private final List<String> customers;
+  private final List<String> articles;
+  private final Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+  private long minThinkMillis;
+  private long maxThinkMillis;
+  private int maxQuantity = 3;
+  private long seed;
+
+  /**
+   * Creates a workload with a purchase/cancel/history mix of 6:2:2 and no think time.
+   *
+   * @param pool the pool the customers and the admin borrow their connections from
+   * @param admin the admin user, who checks the total value
+   * @param adminPassword the password of the admin user
+   * @param customers the names of the simulated customers, one thread each
+   * @param articles the names of the articles the customers buy
+   */
+  public Workload(ShopConnectionPool pool, String admin, String adminPassword,
+                  List<String> customers, List<String> articles) {
+    if (customers.isEmpty() || articles.isEmpty()) {
+      throw new IllegalArgumentException();
+    }
+    this.pool = pool;
+    this.admin = admin;
+    this.adminPassword = adminPassword;
+    this.customers = new ArrayList<>(customers);
+    this.articles = new ArrayList<>(articles);
+    setMix(6, 2, 2);
+  }
+
+  /**
+   * Sets how often each operation is chosen, relative to the others.
+   *
+   * @param purchase the weight of purchases
+   * @param cancel the weight of cancellations
+   * @param history the weight of history reads
+   * @return this workload
+   */
+  public Workload setMix(int purchase, int cancel, int history) {
+    if (purchase < 0 || cancel < 0 || history < 0 || purchase + cancel + history == 0) {
+      throw new IllegalArgumentException();
+    }
+    weights.put(Operation.PURCHASE, purchase);
+    weights.put(Operation.CANCEL, cancel);
+    weights.put(Operation.HISTORY, history);
+    return this;
+  }
+
+  /**
+   * Sets the time a customer waits before each operation, chosen uniformly from a range.
+   *
+   * @param minMillis the shortest think time
+   * @param maxMillis the longest think time
+   * @return this workload
+   */
+  public Workload setThinkTime(long minMillis, long maxMillis) {
+    if (minMillis < 0 || maxMillis < minMillis) {
+      throw new IllegalArgumentException();
+    }
+    this.minThinkMillis = minMillis;
+    this.maxThinkMillis = maxMillis;
+    return this;
+  }
+
+  /**
+   * Sets the largest quantity of a purchase; quantities are chosen uniformly from 1 up to it.
+   *
+   * @param maxQuantity the largest quantity
+   * @return this workload
+   */
+  public Workload setMaxQuantity(int maxQuantity) {
+    if (maxQuantity < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.maxQuantity = maxQuantity;
+    return this;
+  }
+
+  /**
+   * Sets the seed of the random choices, which makes the sequence of operations
+   * of each customer repeatable.
+   *
+   * @param seed the seed
+   * @return this workload
+   */
+  public Workload setSeed(long seed) {
+    this.seed = seed;
+    return this;
+  }
+
+  /**
+   * Runs the workload.
+   *
+   * @param durationMillis how long the customers shop
+   * @return the throughput and latencies of each operation and the outcome of the value check
+   * @throws SQLException if the admin could not check the total value, or a customer
+   *     could not connect
+   * @throws IOException if the required query files could not be read
+   */
+  public WorkloadReport run(long durationMillis) throws SQLException, IOException {
+    Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+    Map<Operation, AtomicLong> errors = new EnumMap<>(Operation.class);
+    for (Operation operation : Operation.values()) {
+      latencies.put(operation, new LatencyHistogram());
+      errors.put(operation, new AtomicLong());
+    }
+    long valueBefore = totalValue();
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+    ExecutorService executor = Executors.newFixedThreadPool(customers.size());
+    try {
+      SplittableRandom seeds = new SplittableRandom(seed);
+      List<Future<Void>> running = new ArrayList<>();
+      for (String customer : customers) {
+        SplittableRandom random = seeds.split();
+        running.add(executor.submit(() -> {
+          shop(customer, random, deadline, latencies, errors);
+          return null;
+        }));
+      }
+      for (Future<Void> customer : running) {
+        await(customer);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    long elapsed = System.nanoTime() - start;
+    Map<Operation, Long> errorCounts = new EnumMap<>(Operation.class);
+    errors.forEach((operation, count) -> errorCounts.put(operation, count.get()));
+    return new WorkloadReport(latencies, errorCounts, TimeUnit.NANOSECONDS.toMillis(elapsed),
+            valueBefore, totalValue());
+  }
+
+  private void shop(String customer, SplittableRandom random, long deadline,
+                    Map<Operation, LatencyHistogram> latencies, Map<Operation, AtomicLong> errors)
+      throws SQLException, InterruptedException {
+    Deque<String> purchased = new ArrayDeque<>();
+    try (UserShopOperations ops = new UserShopOperationsImpl(pool, customer, customer)) {
+      while (true) {
+        long think = minThinkMillis + (maxThinkMillis > minThinkMillis
+                ? random.nextLong(maxThinkMillis - minThinkMillis + 1) : 0);
+        if (think > 0) {
+          TimeUnit.MILLISECONDS.sleep(think);
+        }
+        long begin = System.nanoTime();
+        if (begin >= deadline) {
+          return;
+        }
+        Operation operation = choose(random);
+        try {
+          execute(ops, operation, random, purchased);
+          latencies.get(operation).record(System.nanoTime() - begin);
+        } catch (SQLException | IOException e) {
+          errors.get(operation).incrementAndGet();
+        }
+      }
+    }
+  }
+
+  private void execute(UserShopOperations ops, Operation operation, SplittableRandom random,
+                       Deque<String> purchased) throws SQLException, IOException {
+    switch (operation) {
+      case PURCHASE:
+        String article = articles.get(random.nextInt(articles.size()));
+        if (ops.newPurchase(article, 1 + random.nextInt(maxQuantity))) {
+          purchased.push(article);
+          if (purchased.size() > REMEMBERED_PURCHASES) {
+            purchased.removeLast();
+          }
+        }
+        break;
+      case CANCEL:
+        // cancelling an article that was not bought today is a valid, if cheaper, no-op
+        ops.cancelPurchase(purchased.isEmpty()
+                ? articles.get(random.nextInt(articles.size())) : purchased.pop());
+        break;
+      case HISTORY:
+        try (ResultSet res = ops.selectHistory()) {
+          while (res.next()) {
+            res.getInt(5);
+          }
+        }
+        break;
+      default:
+        throw new IllegalStateException(operation.name());
+    }
+  }
+
+  private Operation choose(SplittableRandom random) {
+    int total = 0;
+    for (int weight : weights.values()) {
+      total += weight;
+    }
+    int r = random.nextInt(total);
+    for (Map.Entry<Operation, Integer> weight : weights.entrySet()) {
+      r -= weight.getValue();
+      if (r < 0) {
+        return weight.getKey();
+      }
+    }
+    throw new IllegalStateException();
+  }
+
+  private long totalValue() throws SQLException, IOException {
+    try (AdminShopOperations op = new AdminShopOperationsImpl(pool, admin, adminPassword)) {
+      return op.getTotalValue();
+    }
+  }
+
+  private static void await(Future<Void> customer) throws SQLException {
+    try {
+      customer.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("interrupted while shopping", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SQLException) {
+        throw (SQLException) cause;
+      }
+      throw new SQLException("customer failed", cause);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package shop;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * This class summarizes a finished workload run.
+ */
+public final class WorkloadReport {
+
+  /** Latencies of the successful executions by operation. */
+  private final Map<Workload.Operation, LatencyHistogram> latencies;
+
+  /** Number of failed executions by operation. */
+  private final Map<Workload.Operation, Long> errors;
+
+  private final long elapsedMillis;
+
+  /** Total value of the shop before the run, see {@link AdminShopOperations#getTotalValue}. */
+  private final long valueBefore;
+
+  /** Total value of the shop after the run. */
+  private final long valueAfter;
+
+  WorkloadReport(Map<Workload.Operation, LatencyHistogram> latencies,
+                 Map<Workload.Operation, Long> errors, long elapsedMillis, long valueBefore,
+                 long valueAfter) {
+    this.latencies = Collections.unmodifiableMap(new EnumMap<>(latencies));
+    this.errors = Collections.unmodifiableMap(new EnumMap<>(errors));
+    this.elapsedMillis = elapsedMillis;
+    this.valueBefore = valueBefore;
+    this.valueAfter = valueAfter;
+  }
+
+  public LatencyHistogram getLatencies(Workload.Operation operation) {
+    return latencies.get(operation);
+  }
+
+  /** Number of successful executions of an operation. */
+  public long getCount(Workload.Operation operation) {
+    return latencies.get(operation).getCount();
+  }
+
+  /** Number of executions of an operation that failed with an exception. */
+  public long getErrors(Workload.Operation operation) {
+    return errors.get(operation);
+  }
+
+  /** Successful executions of an operation per second. */
+  public double getThroughput(Workload.Operation operation) {
+    return elapsedMillis == 0 ? 0 : getCount(operation) * 1000.0 / elapsedMillis;
+  }
+
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+
+  public long getValueBefore() {
+    return valueBefore;
+  }
+
+  public long getValueAfter() {
+    return valueAfter;
+  }
+
+  /** Whether the balances plus the value of all purchases are the same as before the run. */
+  public boolean isValueConserved() {
+    return valueBefore == valueAfter;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder s = new StringBuilder(String.format("%d ms, value %s (%d -> %d)%n",
+            elapsedMillis, isValueConserved() ? "conserved" : "NOT conserved", valueBefore,
+            valueAfter));
+    for (Workload.Operation operation : latencies.keySet()) {
+      s.append(String.format("%-8s %8.1f ops/s errors=%d %s%n", operation,
+              getThroughput(operation), getErrors(operation), getLatencies(operation)));
+    }
+    return s.toString();
+  }
+}
@@ -0,0 +1,14 @@
+alter table customer add primary key (name);
+alter table article add primary key (article);
+do $$
+begin
+-- the key of a partitioned purchase table has to include the partition key
+IF (select relkind from pg_class where oid = 'purchase'::regclass) = 'p' THEN
+alter table purchase add primary key (id, date);
+ELSE
+alter table purchase add primary key (id);
+END IF;
+end;
+$$;
+alter table purchase add foreign key (customer) references customer(name),
+    add foreign key (article) references article(article);
\ No newline at end of file
@@ -1,2 +1 @@
-delete from history
-where article = ?;
\ No newline at end of file
+select cancel_purchase(?);
@@ -0,0 +1 @@
+select cancel_purchases(?);
@@ -0,0 +1,42 @@
+create or replace function cancel_purchases(_articles text[]) returns integer as $$
+declare _customer text := session_user;
+        _cancelled integer;
+begin
+-- delete today's purchases of the articles and refund them in one statement
+with cancelled as (
+    delete from purchase
+    where customer = _customer
+        and date = current_date
+        and article = any(_articles)
+    returning article, quantity
+), refund as (
+    select count(*) as purchases, coalesce(sum(cancelled.quantity * article.price), 0) as amount
+    from cancelled
+    join article on article.article = cancelled.article
+), refunded as (
+    update customer set balance = customer.balance + refund.amount
+    from refund
+    where customer.name = _customer and refund.purchases > 0
+)
+select purchases into _cancelled from refund;
+return _cancelled;
+end;
+$$ Language plpgSQL SECURITY DEFINER;
+
+create or replace function cancel_purchase(_article text) returns integer as $$
+select cancel_purchases(array[_article]);
+$$ Language SQL;
+
+create or replace function cancel_history_row() returns trigger as $$
+begin
+delete from purchase
+where id = old.id
+    and customer = session_user
+    and date = current_date;
+IF NOT FOUND THEN
+return null;
+END IF;
+update customer set balance = balance + old.price where name = session_user;
+return old;
+end;
+$$ Language plpgSQL SECURITY DEFINER;
@@ -0,0 +1,66 @@
+create schema if not exists purchase_archive;
+
+create or replace function create_purchase_partition(_month date) returns text as $$
+declare _from date := date_trunc('month', _month)::date;
+        _to date := (date_trunc('month', _month) + interval '1 month')::date;
+        _partition text := 'purchase_' || to_char(_month, 'YYYY_MM');
+begin
+IF to_regclass(_partition) IS NOT NULL THEN
+return null;
+END IF;
+-- the check constraint spares attach the scan that validates the partition bounds
+execute format('create table %I (like purchase including defaults, '
+    'check (date >= %L and date < %L))', _partition, _from, _to);
+-- rows of the month that went to the default partition so far move to the new partition
+execute format('with moved as ('
+    'delete from purchase_default where date >= %L and date < %L returning *'
+    ') insert into %I select * from moved', _from, _to, _partition);
+execute format('alter table purchase attach partition %I for values from (%L) to (%L)',
+    _partition, _from, _to);
+execute format('alter table %I drop constraint %I', _partition, _partition || '_date_check');
+return _partition;
+end;
+$$ Language plpgSQL;
+
+create or replace function maintain_purchase_partitions(_months_ahead integer,
+                                                        _retain_months integer)
+returns table (partition text, action text) as $$
+declare _current date := date_trunc('month', current_date)::date;
+        _month date;
+begin
+IF (select relkind from pg_class where oid = 'purchase'::regclass) <> 'p' THEN
+RAISE EXCEPTION 'table purchase is not partitioned';
+END IF;
+FOR _month IN
+    select distinct date_trunc('month', purchase_default.date)::date from purchase_default
+    union
+    select generate_series(_current, _current + make_interval(months => _months_ahead),
+                           interval '1 month')::date
+    order by 1
+LOOP
+    partition := create_purchase_partition(_month);
+    IF partition IS NOT NULL THEN
+        action := 'created';
+        RETURN NEXT;
+    END IF;
+END LOOP;
+IF _retain_months < 0 THEN
+RETURN;
+END IF;
+FOR partition IN
+    select child.relname
+    from pg_inherits
+    join pg_class child on child.oid = pg_inherits.inhrelid
+    where pg_inherits.inhparent = 'purchase'::regclass
+        and child.relname ~ '^purchase_\d{4}_\d{2}$'
+        and to_date(substr(child.relname, 10), 'YYYY_MM')
+            < _current - make_interval(months => _retain_months)
+    order by child.relname
+LOOP
+    execute format('alter table purchase detach partition %I', partition);
+    execute format('alter table %I set schema purchase_archive', partition);
+    action := 'archived';
+    RETURN NEXT;
+END LOOP;
+end;
+$$ Language plpgSQL;
\ No newline at end of file
@@ -1,21 +1,24 @@
 create or replace function new_purchase(_article text,_amount integer) returns boolean as $$
-declare success boolean;
-        _price integer;
-        customerBalance integer;
-        _maxId integer;
-        _currentDate date;
+declare _customer text := session_user;
 begin
-_price :=  (select price from article where article=_article) * _amount;
-IF _price > (select balance from customer where name=(select session_user)) THEN
-success := false;
-return success;
+IF _amount <= 0 THEN
+raise check_violation using message = format('new_purchase: quantity %s is not positive', _amount);
 END IF;
-select balance into customerBalance from customer where name = (select session_user);
-update customer set balance = (customerBalance - _price) where name= (select session_user);
-select max(id) into _maxId from purchase;
-_maxId := _maxId + 1;
-insert into purchase values(_maxId,(select session_user),(select current_date),_article, _amount);
-success := true;
-return success;
+-- debit the balance only if it covers the price, in one atomic statement
+update customer
+set balance = customer.balance - article.price * _amount
+from article
+where customer.name = _customer
+    and article.article = _article
+    and customer.balance >= article.price * _amount;
+IF NOT FOUND THEN
+IF NOT EXISTS (select 1 from article where article = _article) THEN
+raise foreign_key_violation using message = format('new_purchase: unknown article %s', _article);
+END IF;
+return false;
+END IF;
+insert into purchase (customer, date, article, quantity)
+values (_customer, current_date, _article, _amount);
+return true;
 end;
-$$ Language plpgSQL SECURITY DEFINER;
\ No newline at end of file
+$$ Language plpgSQL SECURITY DEFINER;
@@ -0,0 +1,51 @@
+create or replace function new_purchases(_articles text[], _amounts integer[])
+returns table(line_no integer, purchase_id integer, line_price integer) as $$
+declare _customer text := session_user;
+        _total bigint;
+        _unknown text;
+begin
+IF coalesce(array_length(_articles, 1), 0) <> coalesce(array_length(_amounts, 1), 0) THEN
+raise exception 'new_purchases: % articles, but % amounts',
+    coalesce(array_length(_articles, 1), 0), coalesce(array_length(_amounts, 1), 0);
+END IF;
+select l.article into _unknown
+from unnest(_articles) as l(article)
+where not exists (select 1 from article a where a.article = l.article)
+limit 1;
+IF FOUND THEN
+raise foreign_key_violation using message = format('new_purchases: unknown article %s', _unknown);
+END IF;
+-- a line with a negative quantity would credit the balance instead of debiting it
+IF EXISTS (select 1 from unnest(_amounts) as l(amount) where l.amount <= 0) THEN
+raise check_violation using message = 'new_purchases: quantities must be positive';
+END IF;
+select sum(a.price * l.amount) into _total
+from unnest(_articles, _amounts) as l(article, amount)
+join article a on a.article = l.article;
+-- debit the whole basket only if the balance covers it, in one atomic statement
+update customer set balance = balance - _total
+where name = _customer and balance >= _total;
+IF NOT FOUND THEN
+return query
+    select l.line::integer, null::integer, a.price * l.amount
+    from unnest(_articles, _amounts) with ordinality as l(article, amount, line)
+    join article a on a.article = l.article
+    order by l.line;
+return;
+END IF;
+return query
+    with lines as (
+        select l.line::integer as line, l.article, l.amount, a.price * l.amount as price,
+               nextval(pg_get_serial_sequence('purchase', 'id'))::integer as id
+        from unnest(_articles, _amounts) with ordinality as l(article, amount, line)
+        join article a on a.article = l.article
+    ), inserted as (
+        insert into purchase (id, customer, date, article, quantity)
+        select lines.id, _customer, current_date, lines.article, lines.amount
+        from lines
+    )
+    select lines.line, lines.id, lines.price
+    from lines
+    order by lines.line;
+end;
+$$ Language plpgSQL SECURITY DEFINER;
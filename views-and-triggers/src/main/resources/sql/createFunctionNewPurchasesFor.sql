@@ -0,0 +1,47 @@
+create or replace function new_purchases_for(_customers text[], _articles text[],
+                                             _amounts integer[])
+returns table(line_no integer, purchased boolean, error_state text, error_message text) as $$
+declare _n integer := coalesce(array_length(_customers, 1), 0);
+begin
+IF _n <> coalesce(array_length(_articles, 1), 0) OR _n <> coalesce(array_length(_amounts, 1), 0) THEN
+raise exception 'new_purchases_for: % customers, % articles, but % amounts',
+    _n, coalesce(array_length(_articles, 1), 0), coalesce(array_length(_amounts, 1), 0);
+END IF;
+for i in 1.._n loop
+    line_no := i;
+    error_state := null;
+    error_message := null;
+    -- each purchase runs in a subtransaction of its own, so that a failing purchase
+    -- does not roll back the others of the batch
+    begin
+        IF _amounts[i] <= 0 THEN
+            raise check_violation
+                using message = format('new_purchase: quantity %s is not positive', _amounts[i]);
+        END IF;
+        update customer
+        set balance = customer.balance - article.price * _amounts[i]
+        from article
+        where customer.name = _customers[i]
+            and article.article = _articles[i]
+            and customer.balance >= article.price * _amounts[i];
+        purchased := FOUND;
+        IF FOUND THEN
+            insert into purchase (customer, date, article, quantity)
+            values (_customers[i], current_date, _articles[i], _amounts[i]);
+        ELSIF NOT EXISTS (select 1 from article where article = _articles[i]) THEN
+            raise foreign_key_violation
+                using message = format('new_purchase: unknown article %s', _articles[i]);
+        ELSIF NOT EXISTS (select 1 from customer where name = _customers[i]) THEN
+            raise foreign_key_violation
+                using message = format('new_purchase: unknown customer %s', _customers[i]);
+        END IF;
+    exception when others then
+        purchased := false;
+        get stacked diagnostics error_state = returned_sqlstate, error_message = message_text;
+    end;
+    return next;
+end loop;
+end;
+$$ Language plpgSQL;
+
+revoke all on function new_purchases_for(text[], text[], integer[]) from public;
\ No newline at end of file
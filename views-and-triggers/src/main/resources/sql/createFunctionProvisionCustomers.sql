@@ -0,0 +1,43 @@
+create or replace function provision_customers(_after text, _limit integer)
+returns table(last_name text, processed integer, created integer, recreated integer,
+              skipped integer) as $$
+declare _name text;
+        _exists boolean;
+        _unchanged boolean;
+begin
+processed := 0;
+created := 0;
+recreated := 0;
+skipped := 0;
+for _name in
+    select name from customer
+    where _after is null or name > _after
+    order by name
+    limit _limit
+loop
+    last_name := _name;
+    processed := processed + 1;
+    select true, r.rolcanlogin and exists (
+        select 1 from pg_auth_members m
+        join pg_roles g on g.oid = m.roleid
+        where g.rolname = 'customer' and m.member = r.oid)
+    into _exists, _unchanged
+    from pg_roles r
+    where r.rolname = _name;
+    IF _exists AND _unchanged THEN
+        skipped := skipped + 1;
+        continue;
+    END IF;
+    IF _exists THEN
+        execute format('drop user %I', _name);
+        recreated := recreated + 1;
+    ELSE
+        created := created + 1;
+    END IF;
+    execute format('create user %I with password %L in role customer', _name, _name);
+end loop;
+return next;
+end;
+$$ Language plpgSQL;
+
+revoke all on function provision_customers(text, integer) from public;
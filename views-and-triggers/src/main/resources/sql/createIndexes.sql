@@ -0,0 +1,7 @@
+-- one index serves both the keyset pages, by id, and today's history, by filtering the
+-- included date; a second one on (customer, date, id) would double the cost of every purchase
+drop index if exists purchase_customer_date_id_idx;
+create index if not exists purchase_customer_id_idx
+    on purchase (customer, id) include (date, article, quantity);
+create index if not exists purchase_article_idx on purchase (article);
+analyze purchase;
\ No newline at end of file
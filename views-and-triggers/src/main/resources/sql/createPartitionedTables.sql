@@ -0,0 +1,23 @@
+create table customer (
+    name text not null,
+    balance int not null,
+    primary key (name)
+);
+create table article (
+    article text not null,
+    price int not null,
+    primary key (article)
+);
+-- keys of a partitioned table have to include the partition key
+create table purchase (
+    id int not null generated by default as identity,
+    customer text not null,
+    date date not null,
+    article text not null,
+    quantity int not null,
+    primary key (id, date),
+    foreign key (customer) references customer(name),
+    foreign key (article) references article(article)
+) partition by range (date);
+-- takes the rows of months without a partition, until maintain_purchase_partitions moves them
+create table purchase_default partition of purchase default;
\ No newline at end of file
@@ -0,0 +1,7 @@
+do $$
+begin
+IF NOT EXISTS (select 1 from pg_roles where rolname = 'customer') THEN
+create role customer;
+END IF;
+end;
+$$;
@@ -9,7 +9,7 @@ create table article (
     primary key (article)
 );
 create table purchase (
-    id int not null,
+    id int not null generated by default as identity,
     customer text not null,
     date date not null,
     article text not null,
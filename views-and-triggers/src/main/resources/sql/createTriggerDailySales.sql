@@ -0,0 +1,92 @@
+create table if not exists daily_sales (
+    date date not null,
+    article text not null,
+    purchases bigint not null,
+    quantity bigint not null,
+    revenue bigint not null,
+    primary key (date, article)
+);
+
+-- the changes of purchases are only appended here, so that concurrent purchases of the same
+-- article do not wait for each other on a row of daily_sales until they commit
+create table if not exists daily_sales_delta (
+    date date not null,
+    article text not null,
+    purchases bigint not null,
+    quantity bigint not null,
+    revenue bigint not null
+);
+
+create or replace function sync_daily_sales() returns trigger as $$
+begin
+-- revenue is counted at the current price, as charged on purchase and refunded on cancellation
+IF TG_OP = 'TRUNCATE' THEN
+    truncate daily_sales, daily_sales_delta;
+ELSIF TG_OP = 'INSERT' THEN
+    insert into daily_sales_delta
+    select added.date, added.article, count(*), sum(added.quantity),
+        sum(added.quantity * article.price)
+    from added
+    join article on article.article = added.article
+    group by added.date, added.article;
+ELSIF TG_OP = 'DELETE' THEN
+    insert into daily_sales_delta
+    select removed.date, removed.article, -count(*), -sum(removed.quantity),
+        -sum(removed.quantity * article.price)
+    from removed
+    join article on article.article = removed.article
+    group by removed.date, removed.article;
+END IF;
+return null;
+end;
+$$ Language plpgSQL;
+
+create or replace function fold_daily_sales() returns bigint as $$
+declare _folded bigint;
+begin
+-- folds run one after the other, which does not block purchases, as they only append deltas;
+-- deltas of transactions that have not committed yet are left for the next fold
+lock table daily_sales in share row exclusive mode;
+with moved as (
+    delete from daily_sales_delta
+    returning *
+), folded as (
+    insert into daily_sales as sales
+    select moved.date, moved.article, sum(moved.purchases), sum(moved.quantity),
+        sum(moved.revenue)
+    from moved
+    group by moved.date, moved.article
+    on conflict (date, article) do update
+    set purchases = sales.purchases + excluded.purchases,
+        quantity = sales.quantity + excluded.quantity,
+        revenue = sales.revenue + excluded.revenue
+)
+select count(*) into _folded from moved;
+return _folded;
+end;
+$$ Language plpgSQL;
+
+-- the existing purchases are summarized while purchases are blocked,
+-- so that no change is counted twice or missed
+begin;
+lock table purchase in share row exclusive mode;
+drop trigger if exists syncDailySalesInsert on purchase;
+create trigger syncDailySalesInsert after insert on purchase
+    referencing new table as added
+    for each statement execute function sync_daily_sales();
+drop trigger if exists syncDailySalesDelete on purchase;
+create trigger syncDailySalesDelete after delete on purchase
+    referencing old table as removed
+    for each statement execute function sync_daily_sales();
+drop trigger if exists syncDailySalesTruncate on purchase;
+create trigger syncDailySalesTruncate after truncate on purchase
+    for each statement execute function sync_daily_sales();
+truncate daily_sales, daily_sales_delta;
+insert into daily_sales
+select purchase.date, purchase.article, count(*), sum(purchase.quantity),
+    sum(purchase.quantity * article.price)
+from purchase
+join article on article.article = purchase.article
+group by purchase.date, purchase.article;
+commit;
+analyze daily_sales;
\ No newline at end of file
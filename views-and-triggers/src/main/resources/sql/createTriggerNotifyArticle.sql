@@ -0,0 +1,28 @@
+create or replace function notify_article_changed() returns trigger as $$
+begin
+-- the payload is the time of the change in epoch milliseconds and the changed article,
+-- which listeners can use to measure how long it took them to see the change
+IF TG_OP = 'TRUNCATE' THEN
+    perform pg_notify('article_changed',
+        (extract(epoch from clock_timestamp()) * 1000)::bigint::text);
+ELSIF TG_OP = 'DELETE' THEN
+    perform pg_notify('article_changed',
+        (extract(epoch from clock_timestamp()) * 1000)::bigint || ' ' || old.article);
+ELSE
+    IF TG_OP = 'UPDATE' AND new.article <> old.article THEN
+        perform pg_notify('article_changed',
+            (extract(epoch from clock_timestamp()) * 1000)::bigint || ' ' || old.article);
+    END IF;
+    perform pg_notify('article_changed',
+        (extract(epoch from clock_timestamp()) * 1000)::bigint || ' ' || new.article);
+END IF;
+return null;
+end;
+$$ Language plpgSQL;
+
+drop trigger if exists notifyArticleChanged on article;
+create trigger notifyArticleChanged after insert or update or delete on article
+    for each row execute function notify_article_changed();
+drop trigger if exists notifyArticleTruncated on article;
+create trigger notifyArticleTruncated after truncate on article
+    for each statement execute function notify_article_changed();
\ No newline at end of file
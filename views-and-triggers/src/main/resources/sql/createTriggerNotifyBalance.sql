@@ -0,0 +1,45 @@
+-- the customers whose balance changed are kept in a table that only the admin can read,
+-- as every user of the database could listen to a notification; no notification is sent,
+-- as every transaction that notifies takes a lock on the server's notification queue
+-- to commit, which would let only one purchase commit at a time
+create table if not exists balance_change (
+    name text not null primary key,
+    xact bigint not null default txid_current()
+);
+revoke all on balance_change from public;
+
+create or replace function record_balance_changed() returns trigger as $$
+begin
+-- one row per customer with the last transaction that changed it, and '' for all customers
+IF TG_OP = 'TRUNCATE' THEN
+    insert into balance_change (name) values ('')
+    on conflict (name) do update set xact = excluded.xact;
+ELSIF TG_OP = 'UPDATE' THEN
+    insert into balance_change (name)
+    select distinct changed.name
+    from (select name, balance from removed except select name, balance from added) changed
+    on conflict (name) do update set xact = excluded.xact;
+ELSE
+    insert into balance_change (name)
+    select distinct removed.name from removed
+    on conflict (name) do update set xact = excluded.xact;
+END IF;
+return null;
+end;
+$$ Language plpgSQL SECURITY DEFINER;
+
+drop trigger if exists notifyBalanceChanged on customer;
+drop trigger if exists notifyCustomerDeleted on customer;
+drop trigger if exists notifyCustomerTruncated on customer;
+drop function if exists notify_balance_changed();
+drop trigger if exists recordBalanceChanged on customer;
+create trigger recordBalanceChanged after update on customer
+    referencing old table as removed new table as added
+    for each statement execute function record_balance_changed();
+drop trigger if exists recordCustomerDeleted on customer;
+create trigger recordCustomerDeleted after delete on customer
+    referencing old table as removed
+    for each statement execute function record_balance_changed();
+drop trigger if exists recordCustomerTruncated on customer;
+create trigger recordCustomerTruncated after truncate on customer
+    for each statement execute function record_balance_changed();
\ No newline at end of file
@@ -0,0 +1,51 @@
+-- the changes are kept in a table that only the admin can read, as every user of the database
+-- can listen to a channel; the notifications only wake up the feeds, without a payload
+create table if not exists purchase_event (
+    seq bigint generated always as identity primary key,
+    xact bigint not null default txid_current(),
+    changed timestamptz not null default clock_timestamp(),
+    type char(1) not null,
+    id int,
+    date date,
+    quantity int,
+    customer text,
+    article text
+);
+create index if not exists purchase_event_xact_idx on purchase_event (xact, seq);
+revoke all on purchase_event from public;
+
+create or replace function notify_purchase_changed() returns trigger as $$
+begin
+-- one event per purchase, I or D for insert or delete, and T for truncate
+IF TG_OP = 'TRUNCATE' THEN
+    insert into purchase_event (type) values ('T');
+ELSIF TG_OP = 'INSERT' THEN
+    insert into purchase_event (type, id, date, quantity, customer, article)
+    select 'I', added.id, added.date, added.quantity, added.customer, added.article
+    from added
+    order by added.id;
+ELSE
+    insert into purchase_event (type, id, date, quantity, customer, article)
+    select 'D', removed.id, removed.date, removed.quantity, removed.customer, removed.article
+    from removed
+    order by removed.id;
+END IF;
+-- equal notifications of a transaction are sent once, at commit
+IF FOUND THEN
+    perform pg_notify('purchase_changed', '');
+END IF;
+return null;
+end;
+$$ Language plpgSQL SECURITY DEFINER;
+
+drop trigger if exists notifyPurchaseInserted on purchase;
+create trigger notifyPurchaseInserted after insert on purchase
+    referencing new table as added
+    for each statement execute function notify_purchase_changed();
+drop trigger if exists notifyPurchaseDeleted on purchase;
+create trigger notifyPurchaseDeleted after delete on purchase
+    referencing old table as removed
+    for each statement execute function notify_purchase_changed();
+drop trigger if exists notifyPurchaseTruncated on purchase;
+create trigger notifyPurchaseTruncated after truncate on purchase
+    for each statement execute function notify_purchase_changed();
\ No newline at end of file
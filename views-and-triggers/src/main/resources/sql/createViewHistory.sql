@@ -1,9 +1,8 @@
-create view history as
-    select id,date,purchase.article as article,quantity,purchase.quantity * (
-        select price from
-         article
-         where article=purchase.article
-    ) as price
+create or replace view history as
+    select purchase.id as id, purchase.date as date, purchase.article as article,
+           purchase.quantity as quantity, purchase.quantity * article.price as price
     from purchase
-    where customer = (select current_user)
-    order by id desc;
\ No newline at end of file
+    join article on article.article = purchase.article
+    -- current_user is of type name, whose "C" collation would keep the index on customer unused
+    where purchase.customer = current_user::text collate "default"
+    order by purchase.id desc;
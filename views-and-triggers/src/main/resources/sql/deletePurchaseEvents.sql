@@ -0,0 +1,2 @@
+delete from purchase_event
+where changed < clock_timestamp() - ? * interval '1 minute'
\ No newline at end of file
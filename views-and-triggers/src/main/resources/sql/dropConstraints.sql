@@ -0,0 +1,8 @@
+alter table purchase drop constraint if exists purchase_customer_fkey;
+alter table purchase drop constraint if exists purchase_article_fkey;
+alter table purchase drop constraint if exists purchase_pkey;
+alter table customer drop constraint if exists customer_pkey;
+alter table article drop constraint if exists article_pkey;
+drop index if exists purchase_customer_date_id_idx;
+drop index if exists purchase_customer_id_idx;
+drop index if exists purchase_article_idx;
@@ -0,0 +1,6 @@
+select purchase.id, purchase.date, purchase.article, purchase.quantity,
+       purchase.quantity * article.price as price
+from purchase
+join article on article.article = purchase.article
+where purchase.customer = ?
+order by purchase.id desc
\ No newline at end of file
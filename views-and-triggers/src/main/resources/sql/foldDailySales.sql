@@ -0,0 +1 @@
+select fold_daily_sales();
\ No newline at end of file
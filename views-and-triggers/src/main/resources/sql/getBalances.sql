@@ -0,0 +1 @@
+select name, balance from customer where name = any(?);
\ No newline at end of file
@@ -0,0 +1,2 @@
+select partition, action
+from maintain_purchase_partitions(?, ?)
\ No newline at end of file
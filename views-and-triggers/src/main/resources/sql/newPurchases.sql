@@ -0,0 +1 @@
+select * from new_purchases(?,?);
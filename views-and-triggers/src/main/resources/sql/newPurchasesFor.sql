@@ -0,0 +1 @@
+select * from new_purchases_for(?,?,?);
\ No newline at end of file
@@ -0,0 +1 @@
+select * from provision_customers(?,?);
@@ -0,0 +1 @@
+reset all; reset role; set session authorization default; unlisten *; select pg_advisory_unlock_all(); discard temp;
\ No newline at end of file
@@ -0,0 +1 @@
+select article, price from article where article = any(?);
\ No newline at end of file
@@ -0,0 +1,5 @@
+select article, sum(purchases) as purchases, sum(quantity) as quantity, sum(revenue) as revenue
+from daily_sales
+where date >= ? and date <= ?
+group by article
+order by revenue desc, article
\ No newline at end of file
@@ -0,0 +1 @@
+select article, price from article;
\ No newline at end of file
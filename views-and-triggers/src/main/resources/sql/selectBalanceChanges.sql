@@ -0,0 +1 @@
+select name, xact from balance_change where xact >= ?
\ No newline at end of file
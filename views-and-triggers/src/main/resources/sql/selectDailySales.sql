@@ -0,0 +1,5 @@
+select date, sum(purchases) as purchases, sum(quantity) as quantity, sum(revenue) as revenue
+from daily_sales
+where date >= ? and date <= ?
+group by date
+order by date
\ No newline at end of file
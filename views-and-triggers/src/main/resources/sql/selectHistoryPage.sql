@@ -0,0 +1,5 @@
+select *
+from history
+where id < ?
+order by id desc
+limit ?;
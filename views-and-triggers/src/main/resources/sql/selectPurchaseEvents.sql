@@ -0,0 +1,5 @@
+select xact, (extract(epoch from changed) * 1000)::bigint, type, id, date, quantity,
+    customer, article
+from purchase_event
+where xact >= ?
+order by xact, seq
\ No newline at end of file
@@ -0,0 +1,4 @@
+select (select coalesce(sum(balance::bigint), 0) from customer)
+    + (select coalesce(sum(purchase.quantity::bigint * article.price), 0)
+       from purchase
+       join article on article.article = purchase.article);
\ No newline at end of file
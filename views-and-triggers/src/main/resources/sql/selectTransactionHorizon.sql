@@ -0,0 +1 @@
+select txid_snapshot_xmin(txid_current_snapshot());
\ No newline at end of file
@@ -0,0 +1,3 @@
+select id, date, customer, article, quantity
+from purchase
+where id > ?
\ No newline at end of file
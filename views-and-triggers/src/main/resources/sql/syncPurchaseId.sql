@@ -0,0 +1,2 @@
+select setval(pg_get_serial_sequence('purchase', 'id'), coalesce(max(id), 0) + 1, false)
+from purchase;
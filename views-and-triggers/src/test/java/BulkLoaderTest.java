@@ -0,0 +1,254 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import shop.AdminShopOperations;
+import shop.AdminShopOperationsImpl;
+import shop.BulkLoadReport;
+import shop.BulkLoadSource;
+import shop.BulkLoader;
+import shop.ShopResource;
+import shop.SyntheticShopData;
+
+
+public class BulkLoaderTest {
+  private static final String BASE_URL = "jdbc:postgresql://localhost/";
+  private static final String SHOP_URL = BASE_URL + "shop";
+
+  @Test
+  public void testSyntheticDataIsDeterministic() throws IOException {
+    SyntheticShopData data = new SyntheticShopData(42, 100, 20, 1000, 1.0, 1.2,
+            LocalDate.of(2020, 1, 1), 30);
+    String first = read(data.purchases());
+    Assertions.assertEquals(first, read(new SyntheticShopData(42, 100, 20, 1000, 1.0, 1.2,
+            LocalDate.of(2020, 1, 1), 30).purchases()));
+    Assertions.assertEquals(1000, first.split("\n").length);
+    Assertions.assertNotEquals(first, read(new SyntheticShopData(43, 100, 20, 1000, 1.0, 1.2,
+            LocalDate.of(2020, 1, 1), 30).purchases()));
+  }
+
+  @Test
+  public void testSyntheticLoad() throws SQLException, IOException {
+    try (AdminShopOperations op = new AdminShopOperationsImpl(BASE_URL, "admin", "admin")) {
+      op.createShopDatabase();
+    }
+    SyntheticShopData data = new SyntheticShopData(7, 2000, 300, 50000, 0.8, 1.1,
+            LocalDate.of(2020, 1, 1), 365);
+    try (AdminShopOperations op = new AdminShopOperationsImpl(SHOP_URL, "admin", "admin")) {
+      op.createTables();
+      BulkLoadReport report = op.populateTables(
+              data.loader(() -> DriverManager.getConnection(SHOP_URL, "admin", "admin"))
+                      .setDeferConstraints(true));
+      Assertions.assertEquals(52300, report.getTotalRows());
+    }
+    try (Connection conn = DriverManager.getConnection(SHOP_URL, "admin", "admin");
+         Statement stmt = conn.createStatement();
+         ResultSet res = stmt.executeQuery("select article, count(*) from purchase "
+                 + "group by article order by count(*) desc limit 1")) {
+      res.next();
+      // with skew, the first article is by far the most popular one
+      Assertions.assertEquals(SyntheticShopData.articleName(0), res.getString(1));
+    }
+  }
+
+  @Test
+  public void testDeferredParallelLoad() throws SQLException, IOException {
+    try (AdminShopOperations op = new AdminShopOperationsImpl(BASE_URL, "admin", "admin")) {
+      op.createShopDatabase();
+    }
+    Path gzipped = Files.createTempFile("purchase", ".data.gz");
+    try (InputStream in = ShopResource.getData("purchase");
+         OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzipped))) {
+      byte[] buffer = new byte[1024];
+      int length;
+      while ((length = in.read(buffer)) != -1) {
+        out.write(buffer, 0, length);
+      }
+    }
+    List<String> finished = new ArrayList<>();
+    try (AdminShopOperations op = new AdminShopOperationsImpl(SHOP_URL, "admin", "admin")) {
+      op.createTables();
+      BulkLoader loader = new BulkLoader(() -> DriverManager.getConnection(SHOP_URL, "admin", "admin"),
+              BulkLoadSource.bundled("customer"), BulkLoadSource.bundled("article"),
+              BulkLoadSource.file(gzipped, BulkLoadSource.Format.TEXT))
+              .setDeferConstraints(true)
+              .setListener((table, rows, bytes, elapsedMillis, done) -> {
+                if (done) {
+                  synchronized (finished) {
+                    finished.add(table);
+                  }
+                }
+              });
+      BulkLoadReport report = op.populateTables(loader);
+      Assertions.assertEquals(50L, report.getRows().get("customer"));
+      Assertions.assertEquals(40L, report.getRows().get("article"));
+      Assertions.assertEquals(350L, report.getRows().get("purchase"));
+      Assertions.assertEquals(3, finished.size());
+      Assertions.assertEquals("purchase", finished.get(2));
+    } finally {
+      Files.delete(gzipped);
+    }
+
+    try (Connection conn = DriverManager.getConnection(SHOP_URL, "admin", "admin");
+         Statement stmt = conn.createStatement()) {
+      try (ResultSet res = stmt.executeQuery("select count(*) from pg_constraint "
+              + "where conrelid in ('customer'::regclass, 'article'::regclass, 'purchase'::regclass)")) {
+        res.next();
+        Assertions.assertEquals(5, res.getInt(1));
+      }
+      try (ResultSet res = stmt.executeQuery("select count(*) from pg_indexes where tablename = 'purchase'")) {
+        res.next();
+        Assertions.assertEquals(3, res.getInt(1));
+      }
+      Assertions.assertThrows(SQLException.class, () -> stmt.executeUpdate(
+              "insert into purchase (customer, date, article, quantity) "
+                      + "values ('nobody', current_date, 'A0', 1)"));
+    }
+  }
+
+  @Test
+  public void testPartitionedLoad() throws SQLException, IOException {
+    try (AdminShopOperations op = new AdminShopOperationsImpl(BASE_URL, "admin", "admin")) {
+      op.createShopDatabase();
+    }
+    LocalDate today = LocalDate.now();
+    SyntheticShopData data = new SyntheticShopData(11, 200, 50, 20000, 0, 0,
+            today.withDayOfMonth(1).minusMonths(3), 100);
+    try (AdminShopOperations op = new AdminShopOperationsImpl(SHOP_URL, "admin", "admin")) {
+      op.createTables(true);
+      op.populateTables(data.loader(() -> DriverManager.getConnection(SHOP_URL, "admin", "admin"))
+              .setDeferConstraints(true));
+      op.createTriggerDailySales();
+      Map<String, String> maintained = op.maintainPurchasePartitions(1, -1);
+      Assertions.assertEquals("created", maintained.get(partition(today.minusMonths(3))));
+      Assertions.assertEquals("created", maintained.get(partition(today.plusMonths(1))));
+      Assertions.assertTrue(op.maintainPurchasePartitions(1, -1).isEmpty());
+
+      try (Connection conn = DriverManager.getConnection(SHOP_URL, "admin", "admin");
+           Statement stmt = conn.createStatement()) {
+        Assertions.assertEquals(20000, count(stmt, "select count(*) from purchase"));
+        Assertions.assertEquals(0, count(stmt, "select count(*) from purchase_default"));
+        // moving purchases between partitions does not count them as new sales
+        Assertions.assertEquals(20000, count(stmt, "select sum(purchases) from daily_sales"));
+        stmt.executeUpdate("insert into purchase (customer, date, article, quantity) "
+                + "values ('c0', current_date, 'a0', 1), ('c0', current_date, 'a1', 1)");
+        // both purchases are cancelled again
+        assertTodayTouchesOnePartition(op, stmt, today);
+
+        Map<String, String> archived = op.maintainPurchasePartitions(1, 0);
+        Assertions.assertEquals(3, archived.size());
+        Assertions.assertEquals("archived", archived.get(partition(today.minusMonths(1))));
+        Assertions.assertEquals(20000, count(stmt, "select count(*) from purchase")
+                + count(stmt, "select count(*) from purchase_archive."
+                + partition(today.minusMonths(1)))
+                + count(stmt, "select count(*) from purchase_archive."
+                + partition(today.minusMonths(2)))
+                + count(stmt, "select count(*) from purchase_archive."
+                + partition(today.minusMonths(3))));
+      }
+    }
+  }
+
+  /**
+   * Checks that today's history and cancellations of a customer only scan the partition
+   * of the current month. The plans of the statements run by the cancellation functions
+   * are sent to the client by auto_explain.
+   */
+  private static void assertTodayTouchesOnePartition(AdminShopOperations op, Statement stmt,
+                                                     LocalDate today)
+      throws SQLException, IOException {
+    op.createUsers(1000);
+    op.createViewHistory();
+    op.createFunctionNewPurchase();
+    op.createRuleDeleteHistory();
+    stmt.execute("load 'auto_explain'");
+    stmt.execute("set auto_explain.log_min_duration = 0");
+    stmt.execute("set auto_explain.log_analyze = on");
+    stmt.execute("set auto_explain.log_nested_statements = on");
+    stmt.execute("set auto_explain.log_level = notice");
+    stmt.execute("set session authorization c0");
+    try {
+      StringBuilder plan = new StringBuilder();
+      try (ResultSet res = stmt.executeQuery(
+              "explain (analyze) " + ShopResource.getQuery("selectHistoryToday"))) {
+        while (res.next()) {
+          plan.append(res.getString(1)).append('\n');
+        }
+      }
+      assertPrunedToPartition(plan.toString(), today);
+
+      stmt.clearWarnings();
+      stmt.execute("select cancel_purchases(array['a0'])");
+      assertPrunedToPartition(nestedDeletePlan(stmt), today);
+
+      stmt.clearWarnings();
+      Assertions.assertEquals(1, stmt.executeUpdate("delete from history where article = 'a1'"));
+      assertPrunedToPartition(nestedDeletePlan(stmt), today);
+    } finally {
+      stmt.execute("reset session authorization");
+      stmt.execute("reset all");
+    }
+  }
+
+  private static String nestedDeletePlan(Statement stmt) throws SQLException {
+    for (SQLWarning w = stmt.getWarnings(); w != null; w = w.getNextWarning()) {
+      if (w.getMessage().contains("Delete on purchase")) {
+        return w.getMessage();
+      }
+    }
+    Assertions.fail("no plan of the delete on purchase");
+    return null;
+  }
+
+  /** Checks that all scans of other partitions were removed, or shown as never executed. */
+  private static void assertPrunedToPartition(String plan, LocalDate today) {
+    Assertions.assertTrue(plan.contains(" on " + partition(today) + " "), plan);
+    Assertions.assertTrue(plan.contains("Subplans Removed") || plan.contains("(never executed)"),
+            plan);
+    for (String line : plan.split("\n")) {
+      if (line.contains("Scan") && line.contains(" on purchase_")
+              && !line.contains(partition(today))) {
+        Assertions.assertTrue(line.contains("(never executed)"), plan);
+      }
+    }
+  }
+
+  private static String partition(LocalDate date) {
+    return String.format("purchase_%04d_%02d", date.getYear(), date.getMonthValue());
+  }
+
+  private static long count(Statement stmt, String query) throws SQLException {
+    try (ResultSet res = stmt.executeQuery(query)) {
+      res.next();
+      return res.getLong(1);
+    }
+  }
+
+  private static String read(BulkLoadSource source) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    try (InputStream in = source.open()) {
+      byte[] buffer = new byte[1024];
+      int length;
+      while ((length = in.read(buffer)) != -1) {
+        result.write(buffer, 0, length);
+      }
+    }
+    return result.toString("UTF-8");
+  }
+}
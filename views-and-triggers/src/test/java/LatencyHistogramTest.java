@@ -0,0 +1,61 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import shop.LatencyHistogram;
+
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void testPercentilesAreWithinBucketPrecision() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long micros = 1; micros <= 1000; micros++) {
+      histogram.record(micros * 1000);
+    }
+    Assertions.assertEquals(1000, histogram.getCount());
+    Assertions.assertEquals(1_000_000, histogram.getMax());
+    assertClose(500_000, histogram.getPercentile(50));
+    assertClose(990_000, histogram.getPercentile(99));
+    assertClose(999_000, histogram.getPercentile(99.9));
+    Assertions.assertEquals(1_000_000, histogram.getPercentile(100));
+  }
+
+  @Test
+  public void testAddMergesCounts() {
+    LatencyHistogram first = new LatencyHistogram();
+    LatencyHistogram second = new LatencyHistogram();
+    first.record(10);
+    second.record(20);
+    second.record(5000);
+    first.add(second);
+    Assertions.assertEquals(3, first.getCount());
+    Assertions.assertEquals(5000, first.getMax());
+    Assertions.assertEquals(20, first.getPercentile(50));
+  }
+
+  @Test
+  public void testConcurrentRecordsAreMerged() throws InterruptedException {
+    LatencyHistogram histogram = new LatencyHistogram();
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(() -> {
+        for (long micros = 1; micros <= 1000; micros++) {
+          histogram.record(micros * 1000);
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assertions.assertEquals(8000, histogram.getCount());
+    assertClose(500_000, histogram.getPercentile(50));
+    assertClose(990_000, histogram.getPercentile(99));
+    histogram.reset();
+    Assertions.assertEquals(0, histogram.getPercentile(50));
+  }
+
+  private static void assertClose(long expected, long actual) {
+    Assertions.assertTrue(actual >= expected && actual <= expected * 1.04,
+            expected + " vs " + actual);
+  }
+}
@@ -0,0 +1,73 @@
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import shop.AdminShopOperations;
+import shop.ShardedShop;
+import shop.UserShopOperations;
+
+
+public class ShardedShopTest {
+  private static final String BASE_URL = "jdbc:postgresql://localhost/";
+
+  @Test
+  public void testCustomersAreSpreadOverShards() throws SQLException, IOException {
+    ShardedShop shop = new ShardedShop(BASE_URL, "shop_shard", 3, "admin", "admin");
+    try {
+      shop.create();
+
+      List<String> customers = shop.selectCustomerNames();
+      Assertions.assertEquals(50, customers.size());
+      Assertions.assertEquals(50, new HashSet<>(customers).size());
+      Assertions.assertEquals(40, shop.selectArticleNames().size());
+      List<Integer> ids = shop.selectPurchaseIds();
+      Assertions.assertEquals(350, ids.size());
+
+      // every shard holds all articles, but only the customers hashed onto it
+      List<Integer> articles = shop.fanOut(op -> count(op.selectArticleName()));
+      Assertions.assertEquals(Arrays.asList(40, 40, 40), articles);
+      for (int shard = 0; shard < shop.getShards(); shard++) {
+        try (AdminShopOperations op = shop.adminOperations(shard);
+             ResultSet res = op.selectCustomerName()) {
+          while (res.next()) {
+            Assertions.assertEquals(shard, shop.shardOf(res.getString(1)));
+          }
+        }
+      }
+
+      // users are routed to their shard, and new ids stay unique across shards
+      int balance = shop.getBalances(Arrays.asList("emilie", "paul")).get("emilie");
+      try (UserShopOperations op = shop.userOperations("emilie", "emilie")) {
+        Assertions.assertTrue(op.newPurchase("A0", 1));
+      }
+      try (UserShopOperations op = shop.userOperations("sophie", "sophie")) {
+        Assertions.assertTrue(op.newPurchase("A0", 1));
+      }
+      Map<String, Integer> balances = shop.getBalances(Arrays.asList("emilie", "nobody"));
+      Assertions.assertEquals(balance - 5, (int) balances.get("emilie"));
+      Assertions.assertFalse(balances.containsKey("nobody"));
+      List<Integer> newIds = shop.selectPurchaseIds();
+      Assertions.assertEquals(352, newIds.size());
+      Assertions.assertEquals(352, new HashSet<>(newIds).size());
+    } finally {
+      // the grants in the shards would keep other tests from dropping role customer
+      shop.drop();
+    }
+  }
+
+  private static int count(ResultSet res) throws SQLException {
+    int rows = 0;
+    try (ResultSet r = res) {
+      while (r.next()) {
+        rows++;
+      }
+    }
+    return rows;
+  }
+}
@@ -0,0 +1,131 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import shop.ShopConnectionPool;
+import shop.StatementCache;
+
+
+public class ShopConnectionPoolTest {
+  private static final String BASE_URL = "jdbc:postgresql://localhost/";
+
+  @Test
+  public void testClosedConnectionIsReused() throws SQLException {
+    try (ShopConnectionPool pool = new ShopConnectionPool(BASE_URL)) {
+      int backend;
+      try (Connection conn = pool.getConnection("admin", "admin")) {
+        backend = backendPid(conn);
+      }
+      try (Connection conn = pool.getConnection("admin", "admin")) {
+        Assertions.assertEquals(backend, backendPid(conn));
+      }
+      ShopConnectionPool.Statistics stats = pool.getStatistics();
+      Assertions.assertEquals(1, stats.getCreated());
+      Assertions.assertEquals(2, stats.getBorrowed());
+      Assertions.assertEquals(1, stats.getReused());
+      Assertions.assertEquals(1, stats.getIdle());
+      Assertions.assertEquals(0, stats.getActive());
+    }
+  }
+
+  @Test
+  public void testReturnedConnectionIsUnusable() throws SQLException {
+    try (ShopConnectionPool pool = new ShopConnectionPool(BASE_URL)) {
+      Connection conn = pool.getConnection("admin", "admin");
+      conn.close();
+      Assertions.assertTrue(conn.isClosed());
+      Assertions.assertThrows(SQLException.class, conn::createStatement);
+    }
+  }
+
+  @Test
+  public void testUncommittedWorkIsRolledBack() throws SQLException {
+    try (ShopConnectionPool pool = new ShopConnectionPool(BASE_URL)) {
+      try (Connection conn = pool.getConnection("admin", "admin")) {
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+          stmt.execute("create temporary table pool_test (id int)");
+        }
+      }
+      try (Connection conn = pool.getConnection("admin", "admin");
+           Statement stmt = conn.createStatement();
+           ResultSet res = stmt.executeQuery("select to_regclass('pg_temp.pool_test')")) {
+        Assertions.assertTrue(conn.getAutoCommit());
+        res.next();
+        Assertions.assertNull(res.getString(1));
+      }
+    }
+  }
+
+  @Test
+  public void testSessionStateIsReset() throws SQLException {
+    try (ShopConnectionPool pool = new ShopConnectionPool(BASE_URL)) {
+      try (Connection conn = pool.getConnection("admin", "admin");
+           Statement stmt = conn.createStatement()) {
+        stmt.execute("set datestyle to 'ISO,DMY'");
+        stmt.execute("create temporary table pool_test (id int)");
+        stmt.execute("listen pool_test");
+        stmt.execute("select pg_advisory_lock(4711)");
+      }
+      try (Connection conn = pool.getConnection("admin", "admin");
+           Statement stmt = conn.createStatement()) {
+        Assertions.assertEquals("ISO, MDY", setting(stmt, "show datestyle"));
+        Assertions.assertNull(setting(stmt, "select to_regclass('pg_temp.pool_test')"));
+        Assertions.assertNull(setting(stmt, "select pg_listening_channels()"));
+        Assertions.assertEquals("0", setting(stmt, "select count(*) from pg_locks "
+                + "where locktype = 'advisory' and pid = pg_backend_pid()"));
+      }
+      Assertions.assertEquals(1, pool.getStatistics().getCreated());
+    }
+  }
+
+  @Test
+  public void testExhaustedSubPoolTimesOut() throws SQLException {
+    try (ShopConnectionPool pool = new ShopConnectionPool(BASE_URL, 1, 0, 10);
+         Connection ignored = pool.getConnection("admin", "admin")) {
+      Assertions.assertThrows(SQLException.class, () -> pool.getConnection("admin", "admin"));
+      Assertions.assertEquals(1, pool.getStatistics().getBorrowTimeouts());
+    }
+  }
+
+  @Test
+  public void testIdleConnectionsAreEvicted() throws SQLException, InterruptedException {
+    try (ShopConnectionPool pool = new ShopConnectionPool(BASE_URL, 2, 50, 1000)) {
+      pool.getConnection("admin", "admin").close();
+      Thread.sleep(100);
+      pool.evictIdle();
+      Assertions.assertEquals(0, pool.getStatistics().getIdle());
+      Assertions.assertEquals(1, pool.getStatistics().getEvicted());
+    }
+  }
+
+  @Test
+  public void testStatementsOutliveLeases() throws SQLException {
+    try (ShopConnectionPool pool = new ShopConnectionPool(BASE_URL)) {
+      StatementCache first;
+      try (Connection conn = pool.getConnection("admin", "admin")) {
+        first = conn.unwrap(StatementCache.class);
+      }
+      try (Connection conn = pool.getConnection("admin", "admin")) {
+        Assertions.assertSame(first, conn.unwrap(StatementCache.class));
+      }
+    }
+  }
+
+  private static String setting(Statement stmt, String query) throws SQLException {
+    try (ResultSet res = stmt.executeQuery(query)) {
+      return res.next() ? res.getString(1) : null;
+    }
+  }
+
+  private static int backendPid(Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement();
+         ResultSet res = stmt.executeQuery("select pg_backend_pid()")) {
+      res.next();
+      return res.getInt(1);
+    }
+  }
+}
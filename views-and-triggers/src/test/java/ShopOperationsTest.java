@@ -1,17 +1,71 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
 import java.sql.Date;
+import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPInputStream;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import shop.AdminShopOperations;
 import shop.AdminShopOperationsImpl;
+import shop.ArticleCatalog;
+import shop.AsyncShopOperations;
+import shop.BalanceCache;
+import shop.BasketQuote;
+import shop.BulkLoadSource;
+import shop.DbConnector;
+import shop.ExportReport;
+import shop.HistoryCursor;
+import shop.HistoryEntry;
+import shop.LatencyHistogram;
+import shop.PurchaseEvent;
+import shop.PurchaseFeed;
+import shop.PurchaseItem;
+import shop.PurchasePipeline;
+import shop.QueryMetrics;
+import shop.QueryStatistics;
+import shop.ProvisioningReport;
+import shop.PurchaseResult;
+import shop.PurchaseSnapshot;
+import shop.ShopConnectionPool;
+import shop.ShopNotificationListener;
+import shop.ShopResource;
+import shop.ShopTable;
+import shop.SlowQuery;
+import shop.SlowQueryLog;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.Assertions;
 import shop.UserShopOperations;
 import shop.UserShopOperationsImpl;
+import shop.Workload;
+import shop.WorkloadReport;
 
 
 public class ShopOperationsTest {
@@ -39,18 +93,551 @@ public class ShopOperationsTest {
 
       op.createUsers();
       assertPaulHasNoAccess();
+      assertBulkProvisioningSkipsUnchangedUsers(op);
 
       op.createViewHistory();
       assertEmilieSeesHistory();
 
+      assertEmilieCanPageHistory();
+
       op.createFunctionNewPurchase();
       assertEmilieCanPurchaseToner();
 
+      assertEmilieCanPurchaseBasket(op);
+      assertConcurrentPurchasesDoNotConflict(op);
+
       op.createRuleDeleteHistory();
       assertEmilieCanCancelPurchase(op);
+      assertEmilieCanCancelBasket(op);
+
+      op.migrateSchema();
+      assertHistoryIsIndexDriven();
+
+      assertWorkloadConservesValue();
+
+      op.createTriggerNotifyArticle();
+      assertCatalogFollowsArticleChanges();
+
+      op.createTriggerNotifyBalance();
+      assertBalancesAreCachedUntilChanged(op);
+
+      assertAsyncOperationsTimeOut(op);
+
+      assertPipelinedPurchasesShareTransactions(op);
+
+      assertQueriesAreMeasured();
+
+      assertSlowQueriesAreExplained(op);
+
+      op.createTriggerDailySales();
+      assertDailySalesFollowPurchases(op);
+
+      assertAdminCanExport(op);
+
+      assertSnapshotMatchesPurchases();
+
+      op.createTriggerNotifyPurchase();
+      assertFeedDeliversPurchases();
+    }
+    assertQueriesAreValid();
+  }
+
+  private void assertEmilieCanCancelBasket(AdminShopOperations adminOp) throws IOException, SQLException {
+    int previousBalance = adminOp.getBalance("emilie");
+    try (UserShopOperations userOp = new UserShopOperationsImpl(SHOP_URL,"emilie", "emilie")) {
+      Assertions.assertEquals(2, userOp.cancelPurchases(Arrays.asList("A0", "A1")));
+      Assertions.assertEquals(0, userOp.cancelPurchases(Arrays.asList("A0", "A1")));
+    }
+    Assertions.assertEquals(previousBalance + 14, adminOp.getBalance("emilie"));
+
+    // deleting from the history view still cancels today's purchases
+    try (UserShopOperations userOp = new UserShopOperationsImpl(SHOP_URL,"emilie", "emilie")) {
+      Assertions.assertTrue(userOp.newPurchase("A2", 3));
+    }
+    try (Connection conn = DriverManager.getConnection(SHOP_URL, "emilie", "emilie");
+         Statement stmt = conn.createStatement()) {
+      Assertions.assertEquals(1, stmt.executeUpdate("delete from history where article = 'A2'"));
+    }
+    Assertions.assertEquals(previousBalance + 14, adminOp.getBalance("emilie"));
+  }
+
+  private void assertWorkloadConservesValue() throws SQLException, IOException {
+    List<String> customers = Arrays.asList("sophie", "david", "leonie", "luisa", "emilie");
+    try (ShopConnectionPool pool = new ShopConnectionPool(SHOP_URL)) {
+      WorkloadReport report = new Workload(pool, "admin", "admin", customers,
+              Arrays.asList("A0", "A1", "A2", "A3", "A4"))
+              .setMix(5, 3, 2)
+              .setThinkTime(0, 2)
+              .setSeed(13)
+              .run(1000);
+      for (Workload.Operation operation : Workload.Operation.values()) {
+        Assertions.assertTrue(report.getCount(operation) > 0, operation.name());
+        Assertions.assertEquals(0, report.getErrors(operation), operation.name());
+        LatencyHistogram latencies = report.getLatencies(operation);
+        Assertions.assertTrue(latencies.getPercentile(50) <= latencies.getPercentile(99.9));
+      }
+      Assertions.assertTrue(report.isValueConserved(), report.toString());
+    }
+  }
+
+  private void assertCatalogFollowsArticleChanges() throws SQLException, IOException {
+    DbConnector admin = () -> DriverManager.getConnection(SHOP_URL, "admin", "admin");
+    try (ShopNotificationListener listener = new ShopNotificationListener(admin);
+         ArticleCatalog catalog = new ArticleCatalog(admin, listener);
+         Connection conn = admin.getConnection();
+         Statement stmt = conn.createStatement()) {
+      Assertions.assertEquals(OptionalInt.of(5), catalog.getPrice("A0"));
+      BasketQuote quote = catalog.quote(Arrays.asList(new PurchaseItem("A0", 2),
+              new PurchaseItem("A1", 1)));
+      Assertions.assertEquals(14, quote.getTotal());
+      Assertions.assertTrue(quote.isAffordable(14));
+      Assertions.assertFalse(quote.isAffordable(13));
+      Assertions.assertEquals(Collections.singletonList("A99"),
+              catalog.quote(Collections.singletonList(new PurchaseItem("A99", 1)))
+                      .getUnknownArticles());
+
+      stmt.executeUpdate("insert into article values ('A99', 7)");
+      awaitPrice(catalog, "A99", OptionalInt.of(7));
+      stmt.executeUpdate("update article set price = 8 where article = 'A99'");
+      awaitPrice(catalog, "A99", OptionalInt.of(8));
+      stmt.executeUpdate("delete from article where article = 'A99'");
+      awaitPrice(catalog, "A99", OptionalInt.empty());
+
+      ArticleCatalog.Statistics stats = catalog.getStatistics();
+      Assertions.assertEquals(1, stats.getReloads());
+      Assertions.assertEquals(3, stats.getChanges());
+      Assertions.assertTrue(stats.getHitRate() > 0 && stats.getHitRate() < 1);
+    }
+  }
+
+  private void assertBalancesAreCachedUntilChanged(AdminShopOperations adminOp)
+      throws SQLException, IOException {
+    List<String> customers = Arrays.asList("sophie", "nobody", "emilie");
+    Map<String, Integer> uncached = adminOp.getBalances(customers);
+    Assertions.assertEquals(Arrays.asList("sophie", "emilie"), new ArrayList<>(uncached.keySet()));
+    Assertions.assertEquals(adminOp.getBalance("emilie"), uncached.get("emilie"));
+
+    DbConnector admin = () -> DriverManager.getConnection(SHOP_URL, "admin", "admin");
+    try (BalanceCache cache = new BalanceCache(admin, 10)) {
+      adminOp.setBalanceCache(cache);
+      Assertions.assertEquals(uncached, adminOp.getBalances(customers));
+      Assertions.assertEquals(uncached, adminOp.getBalances(customers));
+      Assertions.assertEquals(2, cache.getStatistics().getHits());
+      Assertions.assertEquals(4, cache.getStatistics().getMisses());
+
+      try (UserShopOperations userOp = new UserShopOperationsImpl(SHOP_URL, "emilie", "emilie")) {
+        Assertions.assertTrue(userOp.newPurchase("A0", 1));
+      }
+      long deadline = System.currentTimeMillis() + 5000;
+      while (adminOp.getBalance("emilie") != uncached.get("emilie") - 5) {
+        Assertions.assertTrue(System.currentTimeMillis() < deadline, "balance is stale");
+      }
+      Assertions.assertEquals(1, cache.getStatistics().getInvalidations());
+      Assertions.assertEquals(uncached.get("sophie"), adminOp.getBalance("sophie"));
+      Assertions.assertTrue(cache.getLatencies().getCount() > 3);
+    } finally {
+      adminOp.setBalanceCache(null);
+    }
+    // customers cannot read the balance changes of others
+    try (Connection conn = DriverManager.getConnection(SHOP_URL, "paul", "paul");
+         Statement stmt = conn.createStatement()) {
+      SQLException denied = Assertions.assertThrows(SQLException.class,
+              () -> stmt.executeQuery("select * from balance_change"));
+      Assertions.assertEquals("42501", denied.getSQLState());
+    }
+  }
+
+  private void assertAsyncOperationsTimeOut(AdminShopOperations adminOp)
+      throws SQLException, IOException {
+    int balance = adminOp.getBalance("emilie");
+    try (ShopConnectionPool pool = new ShopConnectionPool(SHOP_URL);
+         AsyncShopOperations async = new AsyncShopOperations(pool, 4)) {
+      List<CompletableFuture<Boolean>> purchases = new ArrayList<>();
+      for (int i = 0; i < 20; i++) {
+        purchases.add(async.newPurchase("emilie", "emilie", "A0", 1));
+      }
+      for (CompletableFuture<Boolean> purchase : purchases) {
+        Assertions.assertTrue(purchase.join());
+      }
+      Assertions.assertEquals(balance - 100,
+              async.getBalance("admin", "admin", "emilie").join());
+      List<HistoryEntry> history = async.selectHistory("emilie", "emilie").join();
+      Assertions.assertEquals("A0", history.get(0).getArticle());
+
+      Assertions.assertEquals(0, async.getInFlight());
+    }
+
+    // operations submitted after closing fail instead of staying in flight
+    try (ShopConnectionPool pool = new ShopConnectionPool(SHOP_URL)) {
+      AsyncShopOperations async = new AsyncShopOperations(pool, 1);
+      async.close();
+      CompletableFuture<Boolean> rejected = async.newPurchase("emilie", "emilie", "A0", 1, 200);
+      ExecutionException failed = Assertions.assertThrows(ExecutionException.class,
+              rejected::get);
+      Assertions.assertTrue(failed.getCause() instanceof RejectedExecutionException);
+      Assertions.assertEquals(0, async.getInFlight());
+    }
+
+    // a purchase waits for the lock on the customer row, until it times out
+    try (ShopConnectionPool pool = new ShopConnectionPool(SHOP_URL, 1, 0, 5000);
+         AsyncShopOperations async = new AsyncShopOperations(pool, 1)) {
+      try (Connection conn = DriverManager.getConnection(SHOP_URL, "admin", "admin");
+           Statement stmt = conn.createStatement()) {
+        conn.setAutoCommit(false);
+        stmt.executeQuery("select * from customer where name = 'emilie' for update").close();
+        CompletableFuture<Boolean> blocked = async.newPurchase("emilie", "emilie", "A0", 1, 200);
+        ExecutionException timedOut = Assertions.assertThrows(ExecutionException.class,
+                () -> blocked.get(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(timedOut.getCause() instanceof TimeoutException);
+        conn.rollback();
+      }
+      // the cancelled connection is closed, so its cancel cannot hit the next purchase
+      Assertions.assertTrue(async.newPurchase("emilie", "emilie", "A0", 1).join());
+      Assertions.assertEquals(2, pool.getStatistics().getCreated());
+      Assertions.assertEquals(0, async.getInFlight());
+    }
+    Assertions.assertEquals(balance - 105, adminOp.getBalance("emilie"));
+  }
+
+  private void assertPipelinedPurchasesShareTransactions(AdminShopOperations adminOp)
+      throws SQLException, IOException {
+    List<String> customers = Arrays.asList("sophie", "david");
+    Map<String, Integer> balances = adminOp.getBalances(customers);
+    List<CompletableFuture<Boolean>> purchases = new ArrayList<>();
+    CompletableFuture<Boolean> unknown;
+    CompletableFuture<Boolean> unaffordable;
+    try (PurchasePipeline pipeline = new PurchasePipeline(
+            () -> DriverManager.getConnection(SHOP_URL, "admin", "admin"), 16, 50)) {
+      for (int i = 0; i < 40; i++) {
+        purchases.add(pipeline.newPurchase(customers.get(i % 2), "A1", 1));
+      }
+      unknown = pipeline.newPurchase("sophie", "A99", 1);
+      unaffordable = pipeline.newPurchase("david", "A1", 1_000_000);
+      for (CompletableFuture<Boolean> purchase : purchases) {
+        Assertions.assertTrue(purchase.join());
+      }
+      Assertions.assertFalse(unaffordable.join());
+      ExecutionException error = Assertions.assertThrows(ExecutionException.class,
+              unknown::get);
+      Assertions.assertEquals("23503", ((SQLException) error.getCause()).getSQLState());
+
+      PurchasePipeline.Statistics stats = pipeline.getStatistics();
+      Assertions.assertEquals(42, stats.getPurchases());
+      Assertions.assertTrue(stats.getBatches() >= 3 && stats.getBatches() < 42, stats.toString());
+      Assertions.assertEquals(16, stats.getMaxBatchSize());
+      Assertions.assertEquals(42, pipeline.getLatencies().getCount());
+    }
+    for (String customer : customers) {
+      Assertions.assertEquals(balances.get(customer) - 20 * 4, adminOp.getBalance(customer));
+    }
+  }
+
+  private void assertQueriesAreMeasured() throws SQLException, IOException {
+    QueryMetrics metrics = new QueryMetrics(true);
+    int rows = 0;
+    try (UserShopOperations userOp = new UserShopOperationsImpl(SHOP_URL, "emilie", "emilie")) {
+      userOp.setQueryMetrics(metrics);
+      Assertions.assertTrue(userOp.newPurchase("A0", 1));
+      Assertions.assertThrows(SQLException.class, () -> userOp.newPurchase("A99", 1));
+      try (ResultSet res = userOp.selectHistory()) {
+        while (res.next()) {
+          rows++;
+        }
+      }
+      metrics.setEnabled(false);
+      userOp.newPurchase("A0", 1);
+    }
+    QueryStatistics purchases = metrics.snapshot().get("newPurchase");
+    Assertions.assertEquals(2, purchases.getCalls());
+    Assertions.assertEquals(1, purchases.getErrors());
+    Assertions.assertTrue(purchases.getP50Micros() <= purchases.getMaxMicros());
+    Assertions.assertEquals(rows, metrics.snapshot().get("selectHistory").getRows());
+
+    try {
+      ObjectName name = metrics.register("test");
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      Assertions.assertEquals(2, ((Object[]) server.getAttribute(name, "Queries")).length);
+      server.unregisterMBean(name);
+    } catch (JMException e) {
+      Assertions.fail(e);
+    }
+  }
+
+  private void assertSlowQueriesAreExplained(AdminShopOperations adminOp)
+      throws SQLException, IOException {
+    int balance = adminOp.getBalance("emilie");
+    try (SlowQueryLog log = new SlowQueryLog(0, 1, 0, 2);
+         UserShopOperations userOp = new UserShopOperationsImpl(SHOP_URL, "emilie", "emilie")) {
+      userOp.setSlowQueryLog(log);
+      for (int i = 0; i < 3; i++) {
+        Assertions.assertTrue(userOp.newPurchase("A0", 1));
+      }
+      long deadline = System.currentTimeMillis() + 5000;
+      while (log.getCaptured() + log.getFailed() + log.getSkipped() < 3) {
+        Assertions.assertTrue(System.currentTimeMillis() < deadline, "no plans captured");
+      }
+      Assertions.assertEquals(3, log.getCaptured(), log.getCaptures().toString());
+
+      List<SlowQuery> captures = log.getCaptures("newPurchase");
+      Assertions.assertEquals(2, captures.size());
+      Assertions.assertEquals(Arrays.asList("A0", "1"), captures.get(0).getParameters());
+      Assertions.assertEquals("emilie", captures.get(0).getUser());
+      Assertions.assertTrue(captures.get(0).getPlan().contains("\"Plan\""));
+      StringBuilder dump = new StringBuilder();
+      log.dump(dump);
+      Assertions.assertEquals(2, dump.toString().split("\n").length);
+    }
+    // the explained purchases have been rolled back
+    Assertions.assertEquals(balance - 15, adminOp.getBalance("emilie"));
+  }
+
+  private static void awaitPrice(ArticleCatalog catalog, String article, OptionalInt price) {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!catalog.getPrice(article).equals(price)) {
+      Assertions.assertTrue(System.currentTimeMillis() < deadline, "catalog is stale");
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        Assertions.fail(e);
+      }
+    }
+  }
+
+  private void assertDailySalesFollowPurchases(AdminShopOperations adminOp)
+          throws SQLException, IOException {
+    LocalDate today = LocalDate.now();
+    long quantityBefore = articleQuantity(adminOp, "Toner_104", today);
+    try (UserShopOperations userOp = new UserShopOperationsImpl(SHOP_URL, "emilie", "emilie")) {
+      Assertions.assertTrue(userOp.newPurchase("Toner_104", 2));
+      userOp.newPurchases(Arrays.asList(new PurchaseItem("Toner_104", 1),
+              new PurchaseItem("Briefumschlaege", 1)));
+      // the two statements appended one change per article, which the next fold adds up
+      Assertions.assertEquals(3, adminOp.foldDailySales());
+      Assertions.assertEquals(0, adminOp.foldDailySales());
+      Assertions.assertEquals(quantityBefore + 3, articleQuantity(adminOp, "Toner_104", today));
+      Assertions.assertEquals(2, userOp.cancelPurchases(Collections.singletonList("Toner_104")));
+    }
+    Assertions.assertEquals(quantityBefore, articleQuantity(adminOp, "Toner_104", today));
+
+    // concurrent baskets and cancellations keep the summary exact
+    assertWorkloadConservesValue();
+    try (Connection conn = DriverManager.getConnection(SHOP_URL, "admin", "admin");
+         Statement stmt = conn.createStatement();
+         ResultSet res = stmt.executeQuery("select min(date), max(date), count(*), "
+                 + "sum(quantity), sum(quantity * price) "
+                 + "from purchase join article on article.article = purchase.article")) {
+      res.next();
+      long purchases = 0;
+      long quantity = 0;
+      long revenue = 0;
+      try (ResultSet sales = adminOp.selectDailySales(res.getObject(1, LocalDate.class),
+              res.getObject(2, LocalDate.class))) {
+        while (sales.next()) {
+          purchases += sales.getLong("purchases");
+          quantity += sales.getLong("quantity");
+          revenue += sales.getLong("revenue");
+        }
+      }
+      Assertions.assertEquals(res.getLong(3), purchases);
+      Assertions.assertEquals(res.getLong(4), quantity);
+      Assertions.assertEquals(res.getLong(5), revenue);
+    }
+  }
+
+  private static long articleQuantity(AdminShopOperations adminOp, String article, LocalDate day)
+          throws SQLException, IOException {
+    try (ResultSet res = adminOp.selectArticleSales(day, day)) {
+      while (res.next()) {
+        if (res.getString("article").equals(article)) {
+          return res.getLong("quantity");
+        }
+      }
+    }
+    return 0;
+  }
+
+  private void assertAdminCanExport(AdminShopOperations adminOp)
+          throws SQLException, IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ExportReport report = adminOp.exportTable(ShopTable.PURCHASE, out,
+            BulkLoadSource.Format.CSV, true);
+    Assertions.assertEquals(report.getBytes(), out.size());
+    Assertions.assertTrue(report.getRawBytes() > report.getBytes(), report.toString());
+    String purchases = read(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())));
+    try (Connection conn = DriverManager.getConnection(SHOP_URL, "admin", "admin");
+         Statement stmt = conn.createStatement();
+         ResultSet res = stmt.executeQuery("select count(*) from purchase")) {
+      res.next();
+      Assertions.assertEquals(res.getLong(1), report.getRows());
+      Assertions.assertEquals(res.getLong(1), purchases.split("\n").length);
+    }
+
+    out.reset();
+    report = adminOp.exportHistory("emilie", out, BulkLoadSource.Format.TEXT, false);
+    int entries = 0;
+    try (UserShopOperations userOp = new UserShopOperationsImpl(SHOP_URL, "emilie", "emilie");
+         ResultSet res = userOp.selectHistory()) {
+      while (res.next()) {
+        entries++;
+      }
+    }
+    Assertions.assertEquals(entries, report.getRows());
+    Assertions.assertTrue(out.toString("UTF-8").contains("304\t2014-08-01\tToner_135\t5\t135\n"));
+
+    out.reset();
+    report = adminOp.exportHistory("emilie' or ''='", out, BulkLoadSource.Format.BINARY, false);
+    Assertions.assertEquals(0, report.getRows());
+    Assertions.assertEquals("PGCOPY\n", new String(out.toByteArray(), 0, 7, "US-ASCII"));
+  }
+
+  private void assertSnapshotMatchesPurchases() throws SQLException, IOException {
+    PurchaseSnapshot snapshot = new PurchaseSnapshot(
+            () -> DriverManager.getConnection(SHOP_URL, "admin", "admin"), true);
+    Assertions.assertTrue(snapshot.refresh() > 0);
+    try (Connection conn = DriverManager.getConnection(SHOP_URL, "admin", "admin");
+         Statement stmt = conn.createStatement()) {
+      try (ResultSet res = stmt.executeQuery("select purchase.customer, "
+              + "sum(purchase.quantity * article.price) from purchase "
+              + "join article on article.article = purchase.article group by purchase.customer")) {
+        Map<String, Long> expected = new HashMap<>();
+        while (res.next()) {
+          expected.put(res.getString(1), res.getLong(2));
+        }
+        Assertions.assertEquals(expected, snapshot.getRevenueByCustomer());
+      }
+      long revenue = snapshot.getRevenue();
+      Assertions.assertEquals(revenue, snapshot.getRevenueByArticle().values().stream()
+              .mapToLong(Long::longValue).sum());
+      Assertions.assertEquals(revenue, snapshot.getRevenueByDay().values().stream()
+              .mapToLong(Long::longValue).sum());
+      Assertions.assertTrue(snapshot.getRevenueByDay().containsKey(LocalDate.of(2014, 8, 1)));
+
+      // a refresh only reads the purchases made since the last one
+      try (UserShopOperations userOp = new UserShopOperationsImpl(SHOP_URL, "emilie", "emilie")) {
+        Assertions.assertTrue(userOp.newPurchase("A0", 1));
+      }
+      Assertions.assertEquals(1, snapshot.refresh());
+      Assertions.assertEquals(1, snapshot.getStatistics().getLastRefreshRows());
+      try (ResultSet res = stmt.executeQuery("select max(id), count(*) from purchase")) {
+        res.next();
+        Assertions.assertEquals(res.getInt(1), snapshot.getMaxId());
+        Assertions.assertEquals(res.getInt(2), snapshot.size());
+      }
+      try (ResultSet res = stmt.executeQuery("select price from article where article = 'A0'")) {
+        res.next();
+        Assertions.assertEquals(revenue + res.getInt(1), snapshot.getRevenue());
+      }
+    }
+  }
+
+  private void assertFeedDeliversPurchases() throws SQLException, IOException {
+    DbConnector admin = () -> DriverManager.getConnection(SHOP_URL, "admin", "admin");
+    BlockingQueue<PurchaseEvent> emilie = new LinkedBlockingQueue<>();
+    BlockingQueue<PurchaseEvent> paul = new LinkedBlockingQueue<>();
+    List<String> payloads = new CopyOnWriteArrayList<>();
+    try (ShopNotificationListener listener = new ShopNotificationListener(admin);
+         PurchaseFeed feed = new PurchaseFeed(admin, listener)) {
+      listener.subscribe(PurchaseFeed.CHANNEL, payloads::addAll);
+      feed.addListener("emilie", emilie::add);
+      feed.addListener("paul", paul::add);
+      try (UserShopOperations userOp = new UserShopOperationsImpl(SHOP_URL, "emilie", "emilie")) {
+        userOp.newPurchases(Arrays.asList(new PurchaseItem("A1", 2),
+                new PurchaseItem("Toner_112", 1)));
+        PurchaseEvent first = emilie.poll(5, TimeUnit.SECONDS);
+        PurchaseEvent second = emilie.poll(5, TimeUnit.SECONDS);
+        Assertions.assertNotNull(second);
+        Assertions.assertEquals(PurchaseEvent.Type.PURCHASED, first.getType());
+        Assertions.assertEquals("A1", first.getArticle());
+        Assertions.assertEquals(2, first.getQuantity());
+        Assertions.assertEquals(LocalDate.now(), first.getDate());
+        Assertions.assertEquals("Toner_112", second.getArticle());
+
+        userOp.cancelPurchase("Toner_112");
+        PurchaseEvent cancelled = emilie.poll(5, TimeUnit.SECONDS);
+        Assertions.assertNotNull(cancelled);
+        Assertions.assertEquals(PurchaseEvent.Type.CANCELLED, cancelled.getType());
+        Assertions.assertEquals(second.getId(), cancelled.getId());
+      } catch (InterruptedException e) {
+        Assertions.fail(e);
+      }
+      Assertions.assertTrue(paul.isEmpty());
+      Assertions.assertEquals(0, feed.getStatistics().getFailedReads());
+      Assertions.assertEquals(3, feed.getStatistics().getDelivered());
+    }
+    // other customers may listen to the channel, but learn nothing about the purchases
+    Assertions.assertFalse(payloads.isEmpty());
+    for (String payload : payloads) {
+      Assertions.assertEquals("", payload);
+    }
+    try (Connection conn = DriverManager.getConnection(SHOP_URL, "paul", "paul");
+         Statement stmt = conn.createStatement()) {
+      SQLException denied = Assertions.assertThrows(SQLException.class,
+              () -> stmt.executeQuery("select * from purchase_event"));
+      Assertions.assertEquals("42501", denied.getSQLState());
+    }
+    try (AdminShopOperations adminOp = new AdminShopOperationsImpl(SHOP_URL, "admin", "admin")) {
+      Assertions.assertTrue(adminOp.deletePurchaseEvents(0) >= 3);
+    }
+  }
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int length;
+    while ((length = in.read(buffer)) != -1) {
+      result.write(buffer, 0, length);
+    }
+    return result.toString("UTF-8");
+  }
+
+  private void assertHistoryIsIndexDriven() throws SQLException {
+    try (Connection conn = DriverManager.getConnection(SHOP_URL, "admin", "admin");
+         Statement stmt = conn.createStatement()) {
+      // let the other customers' purchases outgrow emilie's history by far
+      stmt.executeUpdate("insert into purchase (customer, date, article, quantity) "
+              + "select c.name, date '2015-01-01' + (i % 365), 'A' || (i % 5), 1 "
+              + "from generate_series(1, 2000) i, customer c where c.name <> 'emilie'");
+      stmt.execute("analyze purchase");
+      stmt.execute("set role emilie");
+      for (String query : Arrays.asList(ShopResource.getQuery("selectHistory"),
+              ShopResource.getQuery("selectHistoryToday"))) {
+        StringBuilder plan = new StringBuilder();
+        try (ResultSet res = stmt.executeQuery("explain " + query)) {
+          while (res.next()) {
+            plan.append(res.getString(1)).append('\n');
+          }
+        }
+        Assertions.assertFalse(plan.toString().contains("Seq Scan on purchase"), plan.toString());
+        Assertions.assertTrue(plan.toString().contains("purchase_customer_id_idx"), plan.toString());
+      }
+      stmt.execute("reset role");
+    } catch (IOException e) {
+      Assertions.fail(e);
     }
   }
 
+  private void assertQueriesAreValid() throws SQLException {
+    try (Connection conn = DriverManager.getConnection(SHOP_URL, "admin", "admin")) {
+      Map<String, SQLException> errors = ShopResource.validateQueries(conn);
+      Assertions.assertEquals(Collections.singleton("one_example_query_file"), errors.keySet());
+    }
+  }
+
+  private void assertBulkProvisioningSkipsUnchangedUsers(AdminShopOperations adminOp)
+          throws SQLException, IOException {
+    try (Connection conn = DriverManager.getConnection(SHOP_URL, "admin", "admin");
+         Statement stmt = conn.createStatement()) {
+      stmt.execute("drop user luis");
+      stmt.execute("revoke customer from marie");
+    }
+    ProvisioningReport report = adminOp.createUsers(20);
+    Assertions.assertEquals(1, report.getCreated());
+    Assertions.assertEquals(1, report.getRecreated());
+    Assertions.assertEquals(48, report.getSkipped());
+    Assertions.assertEquals(3, report.getChunks());
+    assertPaulHasNoAccess();
+  }
+
   private void assertEmilieSeesHistory() throws IOException, SQLException {
     List<Integer> id = new ArrayList<>();
     List<Date> date = new ArrayList<>();
@@ -75,6 +662,28 @@ public class ShopOperationsTest {
     Assertions.assertEquals(expectedPrices,price);
   }
 
+  private void assertEmilieCanPageHistory() throws IOException, SQLException {
+    try (UserShopOperations ops = new UserShopOperationsImpl(SHOP_URL,"emilie","emilie")) {
+      List<Integer> streamed = new ArrayList<>();
+      try (HistoryCursor cursor = ops.streamHistory(1)) {
+        for (HistoryEntry entry = cursor.next(); entry != null; entry = cursor.next()) {
+          streamed.add(entry.getId());
+        }
+      }
+      Assertions.assertEquals(expectedIds, streamed);
+
+      List<HistoryEntry> first = ops.selectHistoryPage(3);
+      Assertions.assertEquals(3, first.size());
+      Assertions.assertEquals(expectedArticles.get(0), first.get(0).getArticle());
+      Assertions.assertEquals(expectedDates.get(0).toLocalDate(), first.get(0).getDate());
+      Assertions.assertEquals(expectedPrices.get(0).intValue(), first.get(0).getPrice());
+      List<HistoryEntry> second = ops.selectHistoryPage(first.get(2).getId(), 3);
+      Assertions.assertEquals(1, second.size());
+      Assertions.assertEquals(expectedIds.get(3).intValue(), second.get(0).getId());
+      Assertions.assertTrue(ops.selectHistoryPage(second.get(0).getId(), 3).isEmpty());
+    }
+  }
+
   private void assertPaulHasNoAccess() throws SQLException {
     try (AdminShopOperations ops = new AdminShopOperationsImpl(SHOP_URL,"paul", "paul")) {
       SQLException currentException = Assertions.assertThrows(SQLException.class, ops::selectArticleName);
@@ -106,6 +715,74 @@ public class ShopOperationsTest {
         Assertions.assertEquals("Toner_216", res.getString(3));
         Assertions.assertEquals(10,res.getInt(4));
       }
+      Assertions.assertEquals(2, ops.getStatementCache().getMisses());
+      Assertions.assertEquals(2, ops.getStatementCache().getHits());
+    }
+  }
+
+  private void assertEmilieCanPurchaseBasket(AdminShopOperations adminOp) throws SQLException, IOException {
+    int previousBalance = adminOp.getBalance("emilie");
+    try (UserShopOperations ops = new UserShopOperationsImpl(SHOP_URL,"emilie", "emilie")) {
+      List<PurchaseResult> results = ops.newPurchases(Arrays.asList(
+              new PurchaseItem("A0", 2), new PurchaseItem("A1", 1)));
+      Assertions.assertEquals(2, results.size());
+      Assertions.assertTrue(results.get(0).isPurchased());
+      Assertions.assertEquals(10, results.get(0).getPrice());
+      Assertions.assertEquals(4, results.get(1).getPrice());
+      Assertions.assertEquals(results.get(0).getPurchaseId() + 1, results.get(1).getPurchaseId());
+      Assertions.assertEquals(previousBalance - 14, adminOp.getBalance("emilie"));
+
+      // the basket exceeds the balance, so not even the cheap line is purchased
+      results = ops.newPurchases(Arrays.asList(
+              new PurchaseItem("A0", 1), new PurchaseItem("Toner_159", 2)));
+      Assertions.assertFalse(results.get(0).isPurchased());
+      Assertions.assertFalse(results.get(1).isPurchased());
+      Assertions.assertEquals(previousBalance - 14, adminOp.getBalance("emilie"));
+
+      Assertions.assertThrows(SQLException.class,
+              () -> ops.newPurchases(Collections.singletonList(new PurchaseItem("no_such_article", 1))));
+
+      // a negative line must not turn the debit of the basket into a credit
+      SQLException negative = Assertions.assertThrows(SQLException.class,
+              () -> ops.newPurchases(Arrays.asList(
+                      new PurchaseItem("A0", 1), new PurchaseItem("Toner_159", -2))));
+      Assertions.assertEquals("23514", negative.getSQLState());
+      negative = Assertions.assertThrows(SQLException.class, () -> ops.newPurchase("A0", -1));
+      Assertions.assertEquals("23514", negative.getSQLState());
+      Assertions.assertEquals(previousBalance - 14, adminOp.getBalance("emilie"));
+    }
+  }
+
+  private void assertConcurrentPurchasesDoNotConflict(AdminShopOperations adminOp) throws SQLException, IOException {
+    List<String> customers = Arrays.asList("sophie", "david", "leonie", "luisa");
+    int purchases = 25;
+    List<Integer> previousBalances = new ArrayList<>();
+    for (String customer : customers) {
+      previousBalances.add(adminOp.getBalance(customer));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(customers.size());
+    try {
+      List<Future<Integer>> bought = new ArrayList<>();
+      for (String customer : customers) {
+        bought.add(executor.submit(() -> {
+          int successful = 0;
+          try (UserShopOperations ops = new UserShopOperationsImpl(SHOP_URL, customer, customer)) {
+            for (int i = 0; i < purchases; i++) {
+              successful += ops.newPurchase("A1", 1) ? 1 : 0;
+            }
+          }
+          return successful;
+        }));
+      }
+      for (int i = 0; i < customers.size(); i++) {
+        Assertions.assertEquals(purchases, bought.get(i).get());
+        Assertions.assertEquals(previousBalances.get(i) - purchases * 4,
+                adminOp.getBalance(customers.get(i)));
+      }
+    } catch (InterruptedException | ExecutionException e) {
+      Assertions.fail(e);
+    } finally {
+      executor.shutdown();
     }
   }
 
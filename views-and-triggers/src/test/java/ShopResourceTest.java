@@ -0,0 +1,22 @@
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import shop.ShopResource;
+
+
+public class ShopResourceTest {
+
+  @Test
+  public void testQueriesArePreloaded() throws IOException {
+    Assertions.assertTrue(ShopResource.getQueryNames().contains("newPurchase"));
+    Assertions.assertEquals("select new_purchase(?,?);", ShopResource.getQuery("newPurchase").trim());
+    Assertions.assertSame(ShopResource.getQuery("newPurchase"), ShopResource.getQuery("newPurchase"));
+  }
+
+  @Test
+  public void testMissingQueryFails() {
+    Assertions.assertThrows(FileNotFoundException.class, () -> ShopResource.getQuery("noSuchQuery"));
+  }
+}